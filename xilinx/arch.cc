@@ -23,7 +23,9 @@
 #include <boost/range/adaptor/reversed.hpp>
 #include <cmath>
 #include <cstring>
+#include <limits>
 #include <queue>
+#include <tuple>
 #include "log.h"
 #include "nextpnr.h"
 #include "placer1.h"
@@ -75,6 +77,11 @@ Arch::Arch(ArchArgs args) : args(args)
     } catch (...) {
         log_error("Unable to read chipdb %s\n", args.chipdb.c_str());
     }
+    // bbaexport has never written version 2
+    if (chip_info->version < 1 || chip_info->version == 2 || chip_info->version > CHIPDB_MAX_VERSION)
+        log_error("Chipdb %s is version %d, but this nextpnr reads version 1 and versions 3 to %d; rebuild nextpnr or "
+                  "re-export the chipdb without the newer options\n",
+                  args.chipdb.c_str(), int(chip_info->version), int(CHIPDB_MAX_VERSION));
 
     for (int i = 0; i < chip_info->extra_constids->bba_id_count; i++) {
         // log_info("%s %d\n", chip_info->extra_constids->bba_ids[i].get(), int(idstring_idx_to_str->size()));
@@ -93,6 +100,16 @@ Arch::Arch(ArchArgs args) : args(args)
         tileStatus[i].sitevariant.resize(chip_info->tile_insts[i].num_sites);
     }
 
+    if (chipHasLookahead(chip_info)) {
+        const LookaheadPOD &la = *chip_info->lookahead;
+        for (int i = 0; i < la.num_classes; i++) {
+            int intent = la.classes[i].intent;
+            if (intent >= int(lookahead_by_intent.size()))
+                lookahead_by_intent.resize(intent + 1, nullptr);
+            lookahead_by_intent[intent] = &la.classes[i];
+        }
+    }
+
     if (xc7)
         setup_pip_blacklist();
 }
@@ -427,6 +444,142 @@ BelId Arch::getBelByLocation(Loc loc) const
     return BelId();
 }
 
+BelId Arch::getNearestFreeBel(IdString type, int x, int y) const
+{
+    BelId best;
+    int best_dist = std::numeric_limits<int>::max();
+    // Ties go to the lowest tile, then bel index, so that the result does not depend on the search order
+    auto consider = [&](BelId bel) {
+        int dist = std::abs(bel.tile % chip_info->width - x) + std::abs(bel.tile / chip_info->width - y);
+        if (std::make_tuple(dist, bel.tile, bel.index) < std::make_tuple(best_dist, best.tile, best.index) &&
+            checkBelAvail(bel)) {
+            best = bel;
+            best_dist = dist;
+        }
+    };
+    if (!chipHasBelIndex(chip_info)) {
+        for (auto bel : getBelsOfType(type))
+            if (!locInfo(bel).bel_data[bel.index].is_routing)
+                consider(bel);
+        return best;
+    }
+    const BelIndexPOD &bi = *chip_info->bel_index;
+    const BelIndexTypePOD *types = bi.types.get(), *types_end = types + bi.num_types;
+    const BelIndexTypePOD *it = std::lower_bound(types, types_end, type.index,
+                                                 [](const BelIndexTypePOD &t, int v) { return t.type < v; });
+    if (it == types_end || it->type != type.index)
+        return BelId();
+
+    // Visit rings of cells around the one holding (x, y). A bel in ring r is at least (r - 1) * bucket + 1 tiles
+    // away, so the search is over once the best found is no further than that from the next ring.
+    int cx = x / bi.bucket, cy = y / bi.bucket;
+    for (int r = 0; r <= std::max(bi.grid_width, bi.grid_height); r++) {
+        if (best != BelId() && best_dist <= r * bi.bucket - bi.bucket)
+            break;
+        for (int gy = cy - r; gy <= cy + r; gy++) {
+            if (gy < 0 || gy >= bi.grid_height)
+                continue;
+            for (int gx = cx - r; gx <= cx + r; gx += (gy == cy - r || gy == cy + r) ? 1 : 2 * r) {
+                if (gx >= 0 && gx < bi.grid_width) {
+                    int cell = gy * bi.grid_width + gx;
+                    for (int i = it->cell_start[cell]; i < it->cell_start[cell + 1]; i++) {
+                        BelId bel;
+                        bel.tile = it->bels[i].tile;
+                        bel.index = it->bels[i].index;
+                        consider(bel);
+                    }
+                }
+                if (r == 0)
+                    break;
+            }
+        }
+    }
+    return best;
+}
+
+std::vector<BelId> Arch::getBelsOfType(IdString type) const
+{
+    std::vector<BelId> ret;
+    if (!chipHasBelBuckets(chip_info)) {
+        for (auto bel : getBels())
+            if (getBelType(bel) == type)
+                ret.push_back(bel);
+        return ret;
+    }
+    const BelBucketCountPOD *counts = chip_info->bel_bucket_counts.get(),
+                            *counts_end = counts + chip_info->num_bel_buckets;
+    const BelBucketCountPOD *count = std::lower_bound(
+            counts, counts_end, type.index, [](const BelBucketCountPOD &c, int v) { return c.type < v; });
+    if (count == counts_end || count->type != type.index)
+        return ret;
+    ret.reserve(count->num_bels);
+    // The bucket of this type in each tile type, if it has one
+    std::vector<const BelBucketPOD *> tile_type_bucket(chip_info->num_tiletypes, nullptr);
+    for (int t = 0; t < chip_info->num_tiletypes; t++) {
+        const TileTypeBucketsPOD &tb = chip_info->tile_type_buckets[t];
+        const BelBucketPOD *buckets = tb.buckets.get(), *buckets_end = buckets + tb.num_buckets;
+        const BelBucketPOD *bucket = std::lower_bound(buckets, buckets_end, type.index,
+                                                      [](const BelBucketPOD &b, int v) { return b.type < v; });
+        if (bucket != buckets_end && bucket->type == type.index)
+            tile_type_bucket[t] = bucket;
+    }
+    for (int tile = 0; tile < chip_info->num_tiles; tile++) {
+        const BelBucketPOD *bucket = tile_type_bucket[chip_info->tile_insts[tile].type];
+        if (bucket == nullptr)
+            continue;
+        for (int i = 0; i < bucket->num_bels; i++) {
+            BelId bel;
+            bel.tile = tile;
+            bel.index = bucket->bels[i];
+            ret.push_back(bel);
+        }
+    }
+    return ret;
+}
+
+const SiteVariantReachPOD *Arch::getSiteVariantReach(BelId bel) const
+{
+    if (!chipHasSiteReach(chip_info))
+        return nullptr;
+    const BelInfoPOD &bi = locInfo(bel).bel_data[bel.index];
+    const TileTypeSiteReachPOD &tr = chip_info->tile_type_site_reach[chip_info->tile_insts[bel.tile].type];
+    const SiteVariantReachPOD *variants = tr.variants.get(), *variants_end = variants + tr.num_variants;
+    int site = bi.site, variant = bi.site_variant;
+    const SiteVariantReachPOD *vr =
+            std::lower_bound(variants, variants_end, site * 65536 + variant,
+                             [](const SiteVariantReachPOD &v, int k) { return v.site * 65536 + v.variant < k; });
+    if (vr == variants_end || vr->site != site || vr->variant != variant)
+        return nullptr;
+    return vr;
+}
+
+bool Arch::sitePinReachesBelPin(WireId site_pin, BelId bel, IdString pin) const
+{
+    if (!chipHasSiteReach(chip_info))
+        return true;
+    NPNR_ASSERT(site_pin.tile == bel.tile);
+    const SiteVariantReachPOD *vr = getSiteVariantReach(bel);
+    if (vr == nullptr)
+        return false;
+    auto bel_pin_key = std::make_pair(bel.index, pin.index);
+    const SiteReachBelPinPOD *bel_pins = vr->bel_pins.get(), *bel_pins_end = bel_pins + vr->num_bel_pins;
+    const SiteReachBelPinPOD *bp = std::lower_bound(
+            bel_pins, bel_pins_end, bel_pin_key,
+            [](const SiteReachBelPinPOD &p, std::pair<int, int> k) { return std::make_pair(p.bel, p.port) < k; });
+    if (bp == bel_pins_end || std::make_pair(bp->bel, bp->port) != bel_pin_key)
+        return false;
+    int bit = bp - bel_pins, words = (vr->num_bel_pins + 31) / 32;
+    // A site wire can be both an input and an output pin
+    const SiteReachPinPOD *site_pins = vr->site_pins.get(), *site_pins_end = site_pins + vr->num_site_pins;
+    for (const SiteReachPinPOD *sp = std::lower_bound(
+                 site_pins, site_pins_end, site_pin.index,
+                 [](const SiteReachPinPOD &p, int wire) { return p.wire < wire; });
+         sp != site_pins_end && sp->wire == site_pin.index; ++sp)
+        if ((vr->bits[(sp - site_pins) * words + bit / 32] >> (bit % 32)) & 1)
+            return true;
+    return false;
+}
+
 std::vector<std::pair<IdString, std::string>> Arch::getBelAttrs(BelId bel) const { return {}; }
 
 // -----------------------------------------------------------------------
@@ -439,8 +592,8 @@ delay_t Arch::estimateDelay(WireId src, WireId dst, bool debug) const
     int src_intent = wireIntent(src), dst_intent = wireIntent(dst);
     // if (src_intent == ID_PSEUDO_GND || dst_intent == ID_PSEUDO_VCC)
     //    return 500;
-    int dst_tile = dst.tile == -1 ? chip_info->nodes[dst.index].tile_wires[0].tile : dst.tile;
-    int src_tile = src.tile == -1 ? chip_info->nodes[src.index].tile_wires[0].tile : src.tile;
+    int dst_tile = dst.tile == -1 ? nodeTileWire(chip_info, dst.index, 0).tile : dst.tile;
+    int src_tile = src.tile == -1 ? nodeTileWire(chip_info, src.index, 0).tile : src.tile;
 
     if (sink_locs.count(dst)) {
         dst_x = sink_locs.at(dst).x;
@@ -479,14 +632,20 @@ delay_t Arch::estimateDelay(WireId src, WireId dst, bool debug) const
             src_y = src_tile / chip_info->width;
             if (wireInfo(src).name == gnd_row.index || wireInfo(src).name == vcc_row.index)
                 src_x = chip_info->width / 2;
+        } else if (chipHasNodeBounds(chip_info)) {
+            // The nearest location to dest within the node's span
+            const NodeBoundsPOD &nb = chip_info->node_bounds[src.index];
+            src_x = std::min(std::max(dst_x, int(nb.x0)), int(nb.x1));
+            src_y = std::min(std::max(dst_y, int(nb.y0)), int(nb.y1));
         } else {
-            auto &src_n = chip_info->nodes[src.index];
+            int src_n_wires = nodeNumTileWires(chip_info, src.index);
             src_x = -1;
             src_y = -1;
-            for (int i = 0; i < std::min(200, src_n.num_tile_wires); i++) {
+            for (int i = 0; i < std::min(200, src_n_wires); i++) {
                 // Approximate the nearest location to dest
-                int ti = src_n.tile_wires[i].tile;
-                auto &tw = chip_info->tile_types[chip_info->tile_insts[ti].type].wire_data[src_n.tile_wires[i].index];
+                TileWireRefPOD src_tw = nodeTileWire(chip_info, src.index, i);
+                int ti = src_tw.tile;
+                auto &tw = chip_info->tile_types[chip_info->tile_insts[ti].type].wire_data[src_tw.index];
                 if (tw.num_downhill == 0 && src_intent != ID_NODE_PINFEED)
                     continue;
                 int tix = ti % chip_info->width, tiy = ti / chip_info->width;
@@ -496,8 +655,8 @@ delay_t Arch::estimateDelay(WireId src, WireId dst, bool debug) const
                     src_y = tiy;
             }
             if (src_x == -1) {
-                src_x = chip_info->nodes[src.index].tile_wires[0].tile % chip_info->width;
-                src_y = chip_info->nodes[src.index].tile_wires[0].tile / chip_info->width;
+                src_x = nodeTileWire(chip_info, src.index, 0).tile % chip_info->width;
+                src_y = nodeTileWire(chip_info, src.index, 0).tile / chip_info->width;
             }
         }
 
@@ -516,6 +675,7 @@ delay_t Arch::estimateDelay(WireId src, WireId dst, bool debug) const
     }
     if (debug)
         log_info("    src (%d, %d) dst (%d, %d)\n", src_x, src_y, dst_x, dst_y);
+
     /*
         delay_t base = 150 * std::min(std::abs(dst_x - src_x), 30) + 40 * std::max(std::abs(dst_x - src_x) - 30, 0)
                 +  150 * std::min(std::abs(dst_y - src_y), 10) + 60 * std::max(std::abs(dst_y - src_y)  - 10, 0)
@@ -542,13 +702,33 @@ delay_t Arch::estimateDelay(WireId src, WireId dst, bool debug) const
     if (src_intent == ID_NODE_CLE_OUTPUT)
         base -= 80;
 
+    // Nodes with a lookahead table entry for the offset from their anchor tile to a site wire use that, if it is
+    // more than the estimate above. The table is built to the interconnect tile of the sink's site, or its own tile
+    // if it has none, so that is used here whatever sink_locs says; entries near the edge of the table can miss
+    // paths that leave it, so they are not trusted to be lower
+    if (src.tile == -1 && src_intent >= 0 && src_intent < int(lookahead_by_intent.size()) &&
+        lookahead_by_intent[src_intent] != nullptr && dst.tile != -1 && wireInfo(dst).site != -1 &&
+        wireInfo(dst).site < chip_info->tile_insts[dst.tile].num_sites) {
+        const LookaheadPOD &la = *chip_info->lookahead;
+        auto &site = chip_info->tile_insts[dst.tile].site_insts[wireInfo(dst).site];
+        int sink_x = site.inter_x != -1 ? int(site.inter_x) : dst.tile % chip_info->width;
+        int sink_y = site.inter_x != -1 ? int(site.inter_y) : dst.tile / chip_info->width;
+        int dx = sink_x - src_tile % chip_info->width - la.min_dx;
+        int dy = sink_y - src_tile / chip_info->width - la.min_dy;
+        if (dx >= 0 && dx < la.width && dy >= 0 && dy < la.height) {
+            const LookaheadEntryPOD &e = lookahead_by_intent[src_intent]->entries[dy * la.width + dx];
+            if (e.delay >= 0)
+                return std::max(base, delay_t(e.delay) + (sink_locs.count(dst) ? 1000 : 0));
+        }
+    }
+
     return base;
 }
 
 ArcBounds Arch::getRouteBoundingBox(WireId src, WireId dst) const
 {
-    int dst_tile = dst.tile == -1 ? chip_info->nodes[dst.index].tile_wires[0].tile : dst.tile;
-    int src_tile = src.tile == -1 ? chip_info->nodes[src.index].tile_wires[0].tile : src.tile;
+    int dst_tile = dst.tile == -1 ? nodeTileWire(chip_info, dst.index, 0).tile : dst.tile;
+    int src_tile = src.tile == -1 ? nodeTileWire(chip_info, src.index, 0).tile : src.tile;
 
     int x0, x1, y0, y1;
     x0 = src_tile % chip_info->width;
@@ -585,6 +765,33 @@ ArcBounds Arch::getRouteBoundingBox(WireId src, WireId dst) const
     return {x0, y0, x1, y1};
 }
 
+const SitePinTimingPOD *Arch::getSitePinTiming(IdString site_type, IdString pin, bool output) const
+{
+    if (!chipHasSitePinTiming(chip_info))
+        return nullptr;
+    auto key = [](const SitePinTimingPOD &e) { return std::make_tuple(e.site_type, e.pin, e.output); };
+    auto find = std::make_tuple(site_type.index, pin.index, output ? 1 : 0);
+    const SitePinTimingPOD *begin = chip_info->site_pin_timings.get(),
+                           *end = begin + chip_info->num_site_pin_timings;
+    const SitePinTimingPOD *it = std::lower_bound(
+            begin, end, find, [&](const SitePinTimingPOD &e, const decltype(find) &v) { return key(e) < v; });
+    if (it == end || key(*it) != find || it->delay < 0)
+        return nullptr;
+    return it;
+}
+
+delay_t Arch::getSitePinDelay(WireId wire, bool output) const
+{
+    if (wire == WireId() || wire.tile == -1 || !chipHasSiteTypes(chip_info))
+        return 0;
+    const TileWireInfoPOD &wi = locInfo(wire).wire_data[wire.index];
+    const TileTypeSiteTypesPOD &ts = chip_info->tile_type_site_types[chip_info->tile_insts[wire.tile].type];
+    if (wi.site < 0 || wi.site >= ts.num_sites || ts.site_types[wi.site] == -1)
+        return 0;
+    const SitePinTimingPOD *spt = getSitePinTiming(IdString(ts.site_types[wi.site]), IdString(wi.name), output);
+    return spt ? delay_t(spt->delay) : 0;
+}
+
 delay_t Arch::getBoundingBoxCost(WireId src, WireId dst, int distance) const
 {
     int src_intent = wireIntent(src);
@@ -626,6 +833,9 @@ delay_t Arch::predictDelay(const NetInfo *net_info, const PortRef &sink) const
 
         if (xc7)
             base = (base * 3) / 2;
+        // Pins far from the interconnect, such as those of hard blocks, add their distance at either end
+        base += getSitePinDelay(getCtx()->getNetinfoSourceWire(net_info), true) +
+                getSitePinDelay(getCtx()->getNetinfoSinkWire(net_info, sink), false);
         return base;
     }
 }
@@ -897,7 +1107,7 @@ void Arch::findSourceSinkLocations()
                     if (intent != ID_NODE_PINFEED && intent != ID_PSEUDO_VCC && intent != ID_PSEUDO_GND &&
                         intent != ID_INTENT_DEFAULT && intent != ID_NODE_DEDICATED && intent != ID_NODE_OPTDELAY &&
                         intent != ID_PINFEED && intent != ID_INPUT) {
-                        int tile = cursor.tile == -1 ? chip_info->nodes[cursor.index].tile_wires[0].tile : cursor.tile;
+                        int tile = cursor.tile == -1 ? nodeTileWire(chip_info, cursor.index, 0).tile : cursor.tile;
                         sink_locs[sink] = Loc(tile % chip_info->width, tile / chip_info->width, 0);
                         if (getCtx()->debug) {
                             log_info("%s <---- %s\n", nameOfWire(sink), nameOfWire(cursor));
@@ -947,7 +1157,7 @@ void Arch::findSourceSinkLocations()
                     if (intent != ID_NODE_PINFEED && intent != ID_PSEUDO_VCC && intent != ID_PSEUDO_GND &&
                         intent != ID_INTENT_DEFAULT && intent != ID_NODE_DEDICATED && intent != ID_NODE_OPTDELAY &&
                         intent != ID_NODE_OUTPUT && intent != ID_NODE_INT_INTERFACE) {
-                        int tile = cursor.tile == -1 ? chip_info->nodes[cursor.index].tile_wires[0].tile : cursor.tile;
+                        int tile = cursor.tile == -1 ? nodeTileWire(chip_info, cursor.index, 0).tile : cursor.tile;
                         source_locs[source] = Loc(tile % chip_info->width, tile / chip_info->width, 0);
                         if (getCtx()->debug) {
                             log_info("%s ----> %s\n", nameOfWire(source), nameOfWire(cursor));
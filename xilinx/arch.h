@@ -193,6 +193,23 @@ NPNR_PACKED_STRUCT(struct NodeInfoPOD {
     RelPtr<TileWireRefPOD> tile_wires;
 });
 
+// Node shape shared by all nodes with the same intent and tile wires relative to their first tile
+NPNR_PACKED_STRUCT(struct NodeTemplateWirePOD {
+    int16_t dx, dy; // offset from the first (anchor) tile of the node
+    int32_t index;
+});
+
+NPNR_PACKED_STRUCT(struct NodeTemplatePOD {
+    int32_t num_tile_wires;
+    int32_t intent;
+    RelPtr<NodeTemplateWirePOD> tile_wires;
+});
+
+NPNR_PACKED_STRUCT(struct NodeInstPOD {
+    int32_t node_template;
+    int32_t anchor_tile;
+});
+
 NPNR_PACKED_STRUCT(struct TileTypeInfoPOD {
     int32_t type;
 
@@ -304,6 +321,105 @@ NPNR_PACKED_STRUCT(struct TimingDataPOD {
     RelPtr<PipTimingPOD> pip_timing_classes;
 });
 
+NPNR_PACKED_STRUCT(struct LookaheadEntryPOD {
+    int32_t delay; // least delay to a sink at this offset, -1 if the exporter found none
+    int32_t pips;  // number of pips on that path, including the site entrance
+});
+
+NPNR_PACKED_STRUCT(struct LookaheadClassPOD {
+    int32_t intent;                    // intent of the source node
+    RelPtr<LookaheadEntryPOD> entries; // height rows of width entries, by dy then dx
+});
+
+// Offsets are from the anchor (first) tile of the source node to the interconnect tile of the sink's site (or the
+// sink's own tile if the site has none). Delays are on the scale of getPipDelay
+NPNR_PACKED_STRUCT(struct LookaheadPOD {
+    int32_t min_dx, min_dy, width, height;
+    int32_t num_classes;
+    RelPtr<LookaheadClassPOD> classes;
+});
+
+// Span of the tiles that a node's tile wires are in, inclusive
+NPNR_PACKED_STRUCT(struct NodeBoundsPOD { uint16_t x0, y0, x1, y1; });
+
+NPNR_PACKED_STRUCT(struct BelRefPOD {
+    int32_t tile;
+    int32_t index;
+});
+
+NPNR_PACKED_STRUCT(struct BelIndexTypePOD {
+    int32_t type; // nextpnr bel type
+    int32_t num_bels;
+    RelPtr<BelRefPOD> bels;      // placeable bels of this type, grouped by grid cell, row by row
+    RelPtr<int32_t> cell_start;  // index in bels of the first bel of each cell, then num_bels
+});
+
+// Bels of each type on a coarse grid of cells of bucket x bucket tiles
+NPNR_PACKED_STRUCT(struct BelIndexPOD {
+    int32_t bucket;
+    int32_t grid_width, grid_height;
+    int32_t num_types;
+    RelPtr<BelIndexTypePOD> types; // by ascending type
+});
+
+NPNR_PACKED_STRUCT(struct BelBucketPOD {
+    int32_t type; // nextpnr bel type
+    int32_t num_bels;
+    RelPtr<int32_t> bels; // indices of the bels of this type in the tile type
+});
+
+NPNR_PACKED_STRUCT(struct TileTypeBucketsPOD {
+    int32_t num_buckets;
+    RelPtr<BelBucketPOD> buckets; // by ascending type
+});
+
+NPNR_PACKED_STRUCT(struct BelBucketCountPOD {
+    int32_t type;
+    int32_t num_bels; // in the whole device
+});
+
+// Least pips and delay between a site pin and a node in an interconnect tile, -1 if the exporter found none
+NPNR_PACKED_STRUCT(struct SitePinTimingPOD {
+    int32_t site_type;
+    int32_t pin;    // site wire name
+    int32_t output; // 1 for an output pin (delay to the interconnect), 0 for an input (delay from it)
+    int32_t pips;
+    int32_t delay;
+});
+
+NPNR_PACKED_STRUCT(struct TileTypeSiteTypesPOD {
+    int32_t num_sites;
+    RelPtr<int32_t> site_types; // primary site type constid of each site, -1 if none
+});
+
+NPNR_PACKED_STRUCT(struct SiteReachBelPinPOD {
+    int32_t bel; // index in tile type
+    int32_t port;
+});
+
+NPNR_PACKED_STRUCT(struct SiteReachPinPOD {
+    int32_t wire;   // site wire index in tile type
+    int32_t output; // 1 for an output pin, 0 for an input
+});
+
+// For each site pin of a site variant, which of its bel pins the pin reaches through site pips: the bel inputs an
+// input pin can drive, or the bel outputs that can drive an output pin
+NPNR_PACKED_STRUCT(struct SiteVariantReachPOD {
+    int16_t site;
+    int16_t variant;
+    int32_t site_type;
+    int32_t num_bel_pins;
+    RelPtr<SiteReachBelPinPOD> bel_pins; // by bel, then port
+    int32_t num_site_pins;
+    RelPtr<SiteReachPinPOD> site_pins; // by wire, then output
+    RelPtr<uint32_t> bits; // (num_bel_pins + 31) / 32 words for each site pin
+});
+
+NPNR_PACKED_STRUCT(struct TileTypeSiteReachPOD {
+    int32_t num_variants;
+    RelPtr<SiteVariantReachPOD> variants; // by site, then variant
+});
+
 NPNR_PACKED_STRUCT(struct ChipInfoPOD {
     RelPtr<char> name;
     RelPtr<char> generator;
@@ -319,8 +435,129 @@ NPNR_PACKED_STRUCT(struct ChipInfoPOD {
 
     int32_t num_speed_grades;
     RelPtr<TimingDataPOD> timing_data;
+
+    // Version 3 and later
+    int32_t flags;
+    int32_t num_node_templates;
+    RelPtr<NodeTemplatePOD> node_templates;
+    RelPtr<NodeInstPOD> node_insts; // replaces nodes if CHIP_FLAG_NODE_TEMPLATES is set
+    // Added to every tile_wire_to_node entry other than -1 if CHIP_FLAG_RELATIVE_WIRE_TO_NODE is set
+    RelPtr<int32_t> tile_node_base;
+
+    // Version 4 and later
+    RelPtr<LookaheadPOD> lookahead; // if CHIP_FLAG_LOOKAHEAD is set
+
+    // Version 5 and later
+    RelPtr<NodeBoundsPOD> node_bounds; // of each node, if CHIP_FLAG_NODE_BOUNDS is set
+
+    // Version 6 and later
+    RelPtr<BelIndexPOD> bel_index; // if CHIP_FLAG_BEL_INDEX is set
+
+    // Version 7 and later, if CHIP_FLAG_BEL_BUCKETS is set
+    RelPtr<TileTypeBucketsPOD> tile_type_buckets; // of each tile type
+    int32_t num_bel_buckets;
+    RelPtr<BelBucketCountPOD> bel_bucket_counts; // by ascending type
+
+    // Version 8 and later, if CHIP_FLAG_SITE_PIN_TIMING is set
+    int32_t num_site_pin_timings;
+    RelPtr<SitePinTimingPOD> site_pin_timings; // by ascending site type, pin, then output
+
+    // Version 9 and later
+    RelPtr<TileTypeSiteReachPOD> tile_type_site_reach; // of each tile type, if CHIP_FLAG_SITE_REACH is set
+
+    // Version 10 and later
+    RelPtr<TileTypeSiteTypesPOD> tile_type_site_types; // of each tile type, if CHIP_FLAG_SITE_TYPES is set
 });
 
+// Newest chipdb version this build can read. Builds from before the version field was checked do not reject newer
+// chipdbs, and misread them, so a chipdb must not be used with a nextpnr older than the bbaexport that wrote it
+const int32_t CHIPDB_MAX_VERSION = 10;
+
+enum ChipFlags
+{
+    CHIP_FLAG_NODE_TEMPLATES = 0x1,
+    CHIP_FLAG_RELATIVE_WIRE_TO_NODE = 0x2,
+    CHIP_FLAG_LOOKAHEAD = 0x4,
+    CHIP_FLAG_NODE_BOUNDS = 0x8,
+    CHIP_FLAG_BEL_INDEX = 0x10,
+    CHIP_FLAG_BEL_BUCKETS = 0x20,
+    CHIP_FLAG_SITE_PIN_TIMING = 0x40,
+    CHIP_FLAG_SITE_REACH = 0x80,
+    CHIP_FLAG_SITE_TYPES = 0x100,
+};
+
+inline bool chipHasNodeTemplates(const ChipInfoPOD *chip)
+{
+    return chip->version >= 3 && (chip->flags & CHIP_FLAG_NODE_TEMPLATES);
+}
+
+inline bool chipHasRelativeWireToNode(const ChipInfoPOD *chip)
+{
+    return chip->version >= 3 && (chip->flags & CHIP_FLAG_RELATIVE_WIRE_TO_NODE);
+}
+
+inline bool chipHasLookahead(const ChipInfoPOD *chip)
+{
+    return chip->version >= 4 && (chip->flags & CHIP_FLAG_LOOKAHEAD);
+}
+
+inline bool chipHasNodeBounds(const ChipInfoPOD *chip)
+{
+    return chip->version >= 5 && (chip->flags & CHIP_FLAG_NODE_BOUNDS);
+}
+
+inline bool chipHasBelIndex(const ChipInfoPOD *chip)
+{
+    return chip->version >= 6 && (chip->flags & CHIP_FLAG_BEL_INDEX);
+}
+
+inline bool chipHasBelBuckets(const ChipInfoPOD *chip)
+{
+    return chip->version >= 7 && (chip->flags & CHIP_FLAG_BEL_BUCKETS);
+}
+
+inline bool chipHasSitePinTiming(const ChipInfoPOD *chip)
+{
+    return chip->version >= 8 && (chip->flags & CHIP_FLAG_SITE_PIN_TIMING);
+}
+
+inline bool chipHasSiteReach(const ChipInfoPOD *chip)
+{
+    return chip->version >= 9 && (chip->flags & CHIP_FLAG_SITE_REACH);
+}
+
+inline bool chipHasSiteTypes(const ChipInfoPOD *chip)
+{
+    return chip->version >= 10 && (chip->flags & CHIP_FLAG_SITE_TYPES);
+}
+
+inline int32_t nodeNumTileWires(const ChipInfoPOD *chip, int32_t node)
+{
+    if (chipHasNodeTemplates(chip))
+        return chip->node_templates[chip->node_insts[node].node_template].num_tile_wires;
+    return chip->nodes[node].num_tile_wires;
+}
+
+inline int32_t nodeIntent(const ChipInfoPOD *chip, int32_t node)
+{
+    if (chipHasNodeTemplates(chip))
+        return chip->node_templates[chip->node_insts[node].node_template].intent;
+    return chip->nodes[node].intent;
+}
+
+inline TileWireRefPOD nodeTileWire(const ChipInfoPOD *chip, int32_t node, int32_t i)
+{
+    if (chipHasNodeTemplates(chip)) {
+        const NodeInstPOD &ni = chip->node_insts[node];
+        const NodeTemplateWirePOD &tw = chip->node_templates[ni.node_template].tile_wires[i];
+        TileWireRefPOD ref;
+        ref.tile = ni.anchor_tile + tw.dy * chip->width + tw.dx;
+        ref.index = tw.index;
+        return ref;
+    }
+    return chip->nodes[node].tile_wires[i];
+}
+
 /************************ End of chipdb section. ************************/
 
 struct BelIterator
@@ -389,7 +626,7 @@ struct TileWireIterator
     {
         if (baseWire.tile == -1) {
             WireId tw;
-            const auto &node_wire = chip->nodes[baseWire.index].tile_wires[cursor];
+            const TileWireRefPOD node_wire = nodeTileWire(chip, baseWire.index, cursor);
             tw.tile = node_wire.tile;
             tw.index = node_wire.index;
             return tw;
@@ -423,7 +660,7 @@ inline WireId canonicalWireId(const ChipInfoPOD *chip_info, int32_t tile, int32_
         } else {
             // Is a nodal wire, set tile to -1
             id.tile = -1;
-            id.index = node;
+            id.index = chipHasRelativeWireToNode(chip_info) ? (node + chip_info->tile_node_base[tile]) : node;
         }
     }
 
@@ -924,6 +1161,16 @@ struct Arch : BaseCtx
 
     BelId getBelByLocation(Loc loc) const;
     BelRange getBelsByTile(int x, int y) const;
+    // Nearest available bel of a type to (x, y), by Manhattan distance between tiles, BelId() if there is none. The
+    // chipdb's bel index only makes this faster; without it every bel of the type is checked
+    BelId getNearestFreeBel(IdString type, int x, int y) const;
+    // All bels of a type, in the same order as getBels
+    std::vector<BelId> getBelsOfType(IdString type) const;
+    // Whether a site pin (the site wire of a site entrance or exit) can reach a pin of a bel in its site through site
+    // pips. Always true if the chipdb has no site reachability tables
+    bool sitePinReachesBelPin(WireId site_pin, BelId bel, IdString pin) const;
+    // Site reachability of the site variant of a bel, nullptr if the chipdb has none
+    const SiteVariantReachPOD *getSiteVariantReach(BelId bel) const;
 
     bool getBelGlobalBuf(BelId bel) const
     {
@@ -957,7 +1204,7 @@ struct Arch : BaseCtx
     const TileWireInfoPOD &wireInfo(WireId wire) const
     {
         if (wire.tile == -1) {
-            const TileWireRefPOD &wr = chip_info->nodes[wire.index].tile_wires[0];
+            const TileWireRefPOD wr = nodeTileWire(chip_info, wire.index, 0);
             return chip_info->tile_types[chip_info->tile_insts[wr.tile].type].wire_data[wr.index];
         } else {
             return locInfo(wire).wire_data[wire.index];
@@ -973,7 +1220,7 @@ struct Arch : BaseCtx
                       std::string("/") + IdString(locInfo(wire).wire_data[wire.index].name).str(this));
         } else {
             return id(std::string(chip_info
-                                          ->tile_insts[wire.tile == -1 ? chip_info->nodes[wire.index].tile_wires[0].tile
+                                          ->tile_insts[wire.tile == -1 ? nodeTileWire(chip_info, wire.index, 0).tile
                                                                        : wire.tile]
                                           .name.get()) +
                       "/" + IdString(wireInfo(wire).name).c_str(this));
@@ -1062,7 +1309,7 @@ struct Arch : BaseCtx
         range.e.chip = chip_info;
         range.e.baseWire = wire;
         if (wire.tile == -1)
-            range.e.cursor = chip_info->nodes[wire.index].num_tile_wires;
+            range.e.cursor = nodeNumTileWires(chip_info, wire.index);
         else
             range.e.cursor = 1;
         return range;
@@ -1360,7 +1607,7 @@ struct Arch : BaseCtx
     int32_t wireIntent(WireId wire) const
     {
         if (wire.tile == -1)
-            return chip_info->nodes[wire.index].intent;
+            return nodeIntent(chip_info, wire.index);
         else
             return locInfo(wire).wire_data[wire.index].intent;
     }
@@ -1474,9 +1721,15 @@ struct Arch : BaseCtx
 
     // -------------------------------------------------
     mutable IdString gnd_glbl, gnd_row, vcc_glbl, vcc_row;
+    // Router lookahead classes by source node intent, empty if the chipdb has no lookahead table
+    std::vector<const LookaheadClassPOD *> lookahead_by_intent;
     delay_t estimateDelay(WireId src, WireId dst, bool debug = false) const;
     delay_t predictDelay(const NetInfo *net_info, const PortRef &sink) const;
     ArcBounds getRouteBoundingBox(WireId src, WireId dst) const;
+    // Distance of a site pin from the interconnect, nullptr if the chipdb has none for it
+    const SitePinTimingPOD *getSitePinTiming(IdString site_type, IdString pin, bool output) const;
+    // Delay between a site wire and the interconnect if it is a site pin, 0 otherwise
+    delay_t getSitePinDelay(WireId wire, bool output) const;
     delay_t getBoundingBoxCost(WireId src, WireId dst, int distance) const;
     delay_t getDelayEpsilon() const { return 20; }
     delay_t getRipupDelayPenalty() const { return 120; }
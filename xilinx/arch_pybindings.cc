@@ -47,6 +47,12 @@ void arch_wrap_python()
 
     fn_wrapper_2a<Context, decltype(&Context::isValidBelForCell), &Context::isValidBelForCell, pass_through<bool>,
                   addr_and_unwrap<CellInfo>, conv_from_str<BelId>>::def_wrap(ctx_cls, "isValidBelForCell");
+    fn_wrapper_3a<Context, decltype(&Context::sitePinReachesBelPin), &Context::sitePinReachesBelPin, pass_through<bool>,
+                  conv_from_str<WireId>, conv_from_str<BelId>,
+                  conv_from_str<IdString>>::def_wrap(ctx_cls, "sitePinReachesBelPin");
+    fn_wrapper_3a<Context, decltype(&Context::getNearestFreeBel), &Context::getNearestFreeBel, conv_to_str<BelId>,
+                  conv_from_str<IdString>, pass_through<int>,
+                  pass_through<int>>::def_wrap(ctx_cls, "getNearestFreeBel");
 
     typedef std::unordered_map<IdString, std::unique_ptr<CellInfo>> CellMap;
     typedef std::unordered_map<IdString, std::unique_ptr<NetInfo>> NetMap;
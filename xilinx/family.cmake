@@ -14,7 +14,12 @@ if (DEFINED RAPIDWRIGHT_PATH)
 	file(WRITE xilinx/java/bbaexport.mf "Manifest-Version: 1.0\n")
 	file(APPEND xilinx/java/bbaexport.mf "Main-Class: dev.fpga.rapidwright.bbaexport\n")
 	file(APPEND xilinx/java/bbaexport.mf "Class-Path: ${RAPIDWRIGHT_JARS_STR}\n")
-	add_jar(rapidwright_bbaexport SOURCES xilinx/java/bbaexport.java MANIFEST xilinx/java/bbaexport.mf)
+	add_jar(rapidwright_bbaexport SOURCES xilinx/java/bbaexport.java xilinx/java/BBAWriter.java
+		xilinx/java/TextBBAWriter.java xilinx/java/BinaryBBAWriter.java xilinx/java/IntList.java
+		xilinx/java/StringInterner.java xilinx/java/IntInterner.java xilinx/java/LongHashSet.java
+		xilinx/java/PipelinedOutput.java xilinx/java/ExportMetrics.java xilinx/java/IntColumn.java
+		xilinx/java/RouterLookahead.java xilinx/java/PipDelayModel.java xilinx/java/BelIndex.java
+		xilinx/java/NodeTileWires.java xilinx/java/SitePinTiming.java xilinx/java/SiteReachability.java MANIFEST xilinx/java/bbaexport.mf)
 
 	file(WRITE xilinx/java/json2dcp.mf "Manifest-Version: 1.0\n")
 	file(APPEND xilinx/java/json2dcp.mf "Main-Class: dev.fpga.rapidwright.json2dcp\n")
@@ -0,0 +1,31 @@
+package dev.fpga.rapidwright;
+
+import java.io.IOException;
+
+// Sink for the chipdb "bba" token stream. Mirrors the directives understood by bbasm (bba/main.cc),
+// so that the exporter can either write the textual representation or assemble the blob directly.
+public interface BBAWriter {
+    void pre(String s) throws IOException;
+    void post(String s) throws IOException;
+    void push(String name) throws IOException;
+    void pop() throws IOException;
+    void offset32() throws IOException;
+
+    void label(String name) throws IOException;
+    void ref(String name) throws IOException;
+    void str(String s) throws IOException;
+    void align() throws IOException;
+
+    void u8(int value) throws IOException;
+    void u16(int value) throws IOException;
+    void u32(int value) throws IOException;
+
+    // Bytes of output produced so far, for reporting section sizes
+    long position();
+
+    void close() throws IOException;
+
+    // Gives up on an incomplete output after an error: stops any background writing and removes the partial file.
+    // Does not throw, so that the original error is the one reported
+    void abort();
+}
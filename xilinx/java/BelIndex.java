@@ -0,0 +1,93 @@
+package dev.fpga.rapidwright;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.TreeMap;
+
+// Spatial index of the placeable (non-routing) bels of each nextpnr bel type. The device is cut into a coarse grid of
+// bucket x bucket tiles; each type lists its bels grouped by grid cell, row by row, with the start of each cell in
+// that list, so that a placer can look for the nearest bel of a type by visiting cells in rings around a location.
+// Within a cell, bels are in tile and then bel order. Coordinates are tile coordinates, as getBelLocation uses.
+public class BelIndex {
+    public final int bucket;
+    private final int gridWidth, gridHeight;
+    private final TreeMap<Integer, int[]> cellStart = new TreeMap<>(); // by type constid, gridWidth * gridHeight + 1
+    private final TreeMap<Integer, int[]> bels = new TreeMap<>(); // by type constid, tile and bel index pairs
+
+    public BelIndex(int bucket, int width, int height, List<bbaexport.NextpnrTileInst> tileInsts,
+            List<bbaexport.NextpnrTileType> tileTypes) {
+        this.bucket = bucket;
+        this.gridWidth = (width + bucket - 1) / bucket;
+        this.gridHeight = (height + bucket - 1) / bucket;
+        int cells = gridWidth * gridHeight;
+
+        // Count the bels of each type in each cell, then place them
+        for (bbaexport.NextpnrTileInst ti : tileInsts) {
+            bbaexport.CompactTileType td = tileTypes.get(ti.type).data;
+            int cell = cellOf(ti.index, width);
+            for (int b = 0; b < td.belCount; b++) {
+                if (td.belIsRouting[b] != 0)
+                    continue;
+                int[] start = cellStart.computeIfAbsent(td.belType[b], k -> new int[cells + 1]);
+                ++start[cell + 1];
+            }
+        }
+        for (int type : cellStart.keySet()) {
+            int[] start = cellStart.get(type);
+            for (int c = 0; c < cells; c++)
+                start[c + 1] += start[c];
+            bels.put(type, new int[2 * start[cells]]);
+        }
+        TreeMap<Integer, int[]> next = new TreeMap<>();
+        for (int type : cellStart.keySet())
+            next.put(type, cellStart.get(type).clone());
+        for (bbaexport.NextpnrTileInst ti : tileInsts) {
+            bbaexport.CompactTileType td = tileTypes.get(ti.type).data;
+            int cell = cellOf(ti.index, width);
+            for (int b = 0; b < td.belCount; b++) {
+                if (td.belIsRouting[b] != 0)
+                    continue;
+                int i = next.get(td.belType[b])[cell]++;
+                int[] list = bels.get(td.belType[b]);
+                list[2 * i] = ti.index;
+                list[2 * i + 1] = b;
+            }
+        }
+    }
+
+    private int cellOf(int tile, int width) {
+        return (tile / width / bucket) * gridWidth + (tile % width) / bucket;
+    }
+
+    public int typeCount() {
+        return bels.size();
+    }
+
+    public void write(BBAWriter bba) throws IOException {
+        int t = 0;
+        for (int type : bels.keySet()) {
+            bba.label("bel_index_t" + t + "_bels");
+            for (int v : bels.get(type))
+                bba.u32(v); // tile, then index of bel in tile
+            bba.label("bel_index_t" + t + "_cells");
+            for (int v : cellStart.get(type))
+                bba.u32(v); // index of the first bel of each grid cell, then the number of bels
+            ++t;
+        }
+        bba.label("bel_index_types");
+        t = 0;
+        for (int type : bels.keySet()) {
+            bba.u32(type); // bel type constid
+            bba.u32(bels.get(type).length / 2); // number of bels
+            bba.ref("bel_index_t" + t + "_bels");
+            bba.ref("bel_index_t" + t + "_cells");
+            ++t;
+        }
+        bba.label("bel_index");
+        bba.u32(bucket); // width and height of a grid cell in tiles
+        bba.u32(gridWidth); // number of grid columns
+        bba.u32(gridHeight); // number of grid rows
+        bba.u32(bels.size()); // number of bel types, by ascending constid
+        bba.ref("bel_index_types");
+    }
+}
@@ -0,0 +1,184 @@
+package dev.fpga.rapidwright;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Assembles the little-endian chipdb blob directly, producing the same bytes as running bbasm --le on the
+// equivalent text. Backward references are resolved immediately, forward references (and all strings, which
+// bbasm places after the data stream) are patched in place once the stream is complete.
+public class BinaryBBAWriter implements BBAWriter {
+    private final String filename;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final PipelinedOutput out;
+    private long cursor = 0;
+    private boolean offset32 = false;
+
+    private String stream = null;
+    private int streamDepth = 0;
+
+    private final HashMap<String, Long> labels = new HashMap<>();
+
+    // Forward references, resolved in close()
+    private long[] fwdRefPos = new long[16];
+    private final ArrayList<String> fwdRefLabel = new ArrayList<>();
+
+    // Each str directive appends a copy of the string after the data, and refs point at the last copy
+    private final ArrayList<String> strings = new ArrayList<>();
+    private long[] strRefPos = new long[16];
+    private int strRefCount = 0;
+
+    public BinaryBBAWriter(String filename) throws IOException {
+        this.filename = filename;
+        file = new RandomAccessFile(filename, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        out = new PipelinedOutput(channel, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Only used for C output by bbasm
+    public void pre(String s) { }
+    public void post(String s) { }
+
+    public void push(String name) {
+        if (stream != null && !stream.equals(name))
+            throw new UnsupportedOperationException("binary bba writer only supports a single stream");
+        stream = name;
+        ++streamDepth;
+    }
+
+    public void pop() {
+        if (streamDepth == 0)
+            throw new IllegalStateException("pop without push");
+        --streamDepth;
+    }
+
+    public void offset32() {
+        offset32 = true;
+    }
+
+    private void checkStream() {
+        if (streamDepth == 0)
+            throw new IllegalStateException("data outside of stream");
+    }
+
+    public void label(String name) {
+        checkStream();
+        if (offset32 && cursor % 4 != 0)
+            throw new IllegalStateException("label " + name + " is not 32-bit aligned");
+        labels.put(name, cursor);
+    }
+
+    public void ref(String name) throws IOException {
+        checkStream();
+        Long target = labels.get(name);
+        if (target != null) {
+            writeRef(target);
+        } else {
+            if (fwdRefLabel.size() == fwdRefPos.length)
+                fwdRefPos = Arrays.copyOf(fwdRefPos, fwdRefPos.length * 2);
+            fwdRefPos[fwdRefLabel.size()] = cursor;
+            fwdRefLabel.add(name);
+            u32(0);
+        }
+    }
+
+    private void writeRef(long target) throws IOException {
+        if (cursor % 4 != 0 || target % 4 != 0)
+            throw new IllegalStateException("misaligned reference");
+        u32((int)((target - cursor) / 4));
+    }
+
+    public void str(String s) throws IOException {
+        checkStream();
+        if (strRefCount == strRefPos.length)
+            strRefPos = Arrays.copyOf(strRefPos, strRefPos.length * 2);
+        strRefPos[strRefCount++] = cursor;
+        strings.add(s);
+        u32(0);
+    }
+
+    public void align() throws IOException {
+        checkStream();
+        pad();
+    }
+
+    private void pad() throws IOException {
+        while (cursor % 4 != 0)
+            u8(0);
+    }
+
+    public void u8(int value) throws IOException {
+        out.buffer(1).put((byte)value);
+        cursor += 1;
+    }
+
+    public void u16(int value) throws IOException {
+        if (cursor % 2 != 0)
+            throw new IllegalStateException("misaligned u16");
+        out.buffer(2).putShort((short)value);
+        cursor += 2;
+    }
+
+    public void u32(int value) throws IOException {
+        if (cursor % 4 != 0)
+            throw new IllegalStateException("misaligned u32");
+        out.buffer(4).putInt(value);
+        cursor += 4;
+    }
+
+    private void patch(long pos, long target) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(0, (int)((target - pos) / 4));
+        channel.write(b, pos);
+    }
+
+    public long position() {
+        return cursor;
+    }
+
+    public void close() throws IOException {
+        if (streamDepth != 0)
+            throw new IllegalStateException("unterminated stream " + stream);
+        // String data, appended after all streams as bbasm does
+        HashMap<String, Long> strPos = new HashMap<>();
+        for (String s : strings) {
+            pad();
+            strPos.put(s, cursor);
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            for (byte b : bytes)
+                u8(b);
+            u8(0);
+        }
+        out.finish();
+        for (int i = 0; i < fwdRefLabel.size(); i++) {
+            Long target = labels.get(fwdRefLabel.get(i));
+            if (target == null)
+                throw new IllegalStateException("undefined label " + fwdRefLabel.get(i));
+            patch(fwdRefPos[i], target);
+        }
+        for (int i = 0; i < strRefCount; i++)
+            patch(strRefPos[i], strPos.get(strings.get(i)));
+        channel.close();
+        file.close();
+    }
+
+    public void abort() {
+        out.abort();
+        try {
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            // the partial file is deleted below regardless
+        }
+        new File(filename).delete();
+    }
+}
@@ -0,0 +1,184 @@
+package dev.fpga.rapidwright;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Wall time, throughput and output size figures for one device export, so that export performance can be tracked
+// across RapidWright versions. Only the exporting thread updates an instance.
+public class ExportMetrics {
+    static class Phase {
+        final String name;
+        final long startNanos;
+        long nanos = -1;
+        long heapUsed;
+        final LinkedHashMap<String, Long> counts = new LinkedHashMap<>();
+
+        Phase(String name) {
+            this.name = name;
+            this.startNanos = System.nanoTime();
+        }
+    }
+
+    public final String device;
+    private final long startNanos = System.nanoTime();
+    private long totalNanos = -1;
+    private final ArrayList<Phase> phases = new ArrayList<>();
+    private Phase current = null;
+    private final LinkedHashMap<String, Long> sections = new LinkedHashMap<>();
+    private String section = null;
+    private long sectionStart = 0, outputBytes = 0;
+
+    public ExportMetrics(String device) {
+        this.device = device;
+    }
+
+    public void begin(String phase) {
+        end();
+        current = new Phase(phase);
+        phases.add(current);
+    }
+
+    public void end() {
+        if (current == null)
+            return;
+        current.nanos = System.nanoTime() - current.startNanos;
+        current.heapUsed = heapUsed();
+        current = null;
+    }
+
+    // Records a count of items handled by the current phase, reported along with the rate per second
+    public void count(String what, long n) {
+        current.counts.merge(what, n, Long::sum);
+    }
+
+    // Starts a new output section; the previous one is sized from the writer position
+    public void section(BBAWriter bba, String name) {
+        section(bba.position(), name);
+    }
+
+    private void section(long pos, String name) {
+        if (section != null)
+            sections.merge(section, pos - sectionStart, Long::sum);
+        section = name;
+        sectionStart = pos;
+    }
+
+    // Closes the last section, once the writer is closed and the output file complete. Anything written by close
+    // itself (the strings pooled by the binary writer) is reported as a section of its own.
+    public void finish(long endPosition, File output) {
+        section(endPosition, null);
+        long tail = output.length() - endPosition;
+        if (tail > 0)
+            sections.put("strings", tail);
+        outputBytes = output.length();
+        end();
+        totalNanos = System.nanoTime() - startNanos;
+    }
+
+    public static long heapUsed() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // Sum of the peak usage of each heap pool, which is an upper bound on the peak heap since JVM start
+    public static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+                peak += pool.getPeakUsage().getUsed();
+        return peak;
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int)c));
+            else
+                sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e9);
+    }
+
+    private void toJson(PrintWriter w) {
+        w.println("    {");
+        w.println("      \"device\": " + quote(device) + ",");
+        w.println("      \"seconds\": " + seconds(totalNanos) + ",");
+        w.println("      \"output_bytes\": " + outputBytes + ",");
+        w.println("      \"phases\": [");
+        for (int i = 0; i < phases.size(); i++) {
+            Phase p = phases.get(i);
+            w.print("        {\"name\": " + quote(p.name) + ", \"seconds\": " + seconds(p.nanos)
+                    + ", \"heap_used_bytes\": " + p.heapUsed);
+            for (Map.Entry<String, Long> e : p.counts.entrySet()) {
+                w.print(", " + quote(e.getKey()) + ": " + e.getValue());
+                if (p.nanos > 0)
+                    w.print(", " + quote(e.getKey() + "_per_second") + ": "
+                            + String.format(Locale.ROOT, "%.1f", e.getValue() / (p.nanos / 1e9)));
+            }
+            w.println("}" + (i + 1 < phases.size() ? "," : ""));
+        }
+        w.println("      ],");
+        w.println("      \"section_bytes\": {");
+        int i = 0;
+        for (Map.Entry<String, Long> e : sections.entrySet())
+            w.println("        " + quote(e.getKey()) + ": " + e.getValue() + (++i < sections.size() ? "," : ""));
+        w.println("      }");
+        w.print("    }");
+    }
+
+    public static void writeReport(File file, int threads, long runNanos, List<ExportMetrics> exports)
+            throws IOException {
+        try (PrintWriter w = new PrintWriter(file, "UTF-8")) {
+            w.println("{");
+            w.println("  \"rapidwright_version\": " + quote(bbaexport.TileTypeCache.rapidWrightVersion())
+                    + ",");
+            w.println("  \"threads\": " + threads + ",");
+            w.println("  \"seconds\": " + seconds(runNanos) + ",");
+            w.println("  \"peak_heap_bytes\": " + peakHeap() + ",");
+            w.println("  \"exports\": [");
+            for (int i = 0; i < exports.size(); i++) {
+                exports.get(i).toJson(w);
+                w.println(i + 1 < exports.size() ? "," : "");
+            }
+            w.println("  ]");
+            w.println("}");
+        }
+    }
+
+    // Progress output limited to one line per interval, plus the final step, however many steps there are
+    public static class Progress {
+        private final String prefix;
+        private final long intervalNanos;
+        private long last;
+
+        public Progress(String prefix, long intervalMillis) {
+            this.prefix = prefix;
+            this.intervalNanos = intervalMillis * 1000000L;
+            this.last = System.nanoTime();
+        }
+
+        public void update(long done, long total, String what) {
+            long now = System.nanoTime();
+            if (done < total && now - last < intervalNanos)
+                return;
+            last = now;
+            System.out.println(prefix + what + " " + done + "/" + total);
+        }
+    }
+}
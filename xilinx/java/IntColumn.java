@@ -0,0 +1,116 @@
+package dev.fpga.rapidwright;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Growable array of ints with long indices, for the per-wire and per-node tables of an export. It is held on the
+// heap, or with a spill directory in a memory-mapped temporary file, so that the heap needed does not grow with the
+// device and the OS can page the table out under memory pressure.
+public class IntColumn implements Closeable {
+    private static final int CHUNK_SHIFT = 20;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT, CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final ArrayList<int[]> heapChunks; // null if mapped
+    private final ArrayList<IntBuffer> mappedChunks; // null if on the heap
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private long size = 0;
+
+    // spillDir is null to keep the column on the heap
+    public IntColumn(File spillDir) throws IOException {
+        if (spillDir == null) {
+            heapChunks = new ArrayList<>();
+            mappedChunks = null;
+            file = null;
+            raf = null;
+            channel = null;
+            return;
+        }
+        heapChunks = null;
+        mappedChunks = new ArrayList<>();
+        file = File.createTempFile("bbaexport", ".spill", spillDir);
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    private void grow() {
+        if (heapChunks != null) {
+            heapChunks.add(new int[CHUNK_SIZE]);
+            return;
+        }
+        long offset = (long)mappedChunks.size() * CHUNK_SIZE * 4;
+        try {
+            mappedChunks.add(channel.map(FileChannel.MapMode.READ_WRITE, offset, CHUNK_SIZE * 4L)
+                    .order(ByteOrder.nativeOrder()).asIntBuffer());
+        } catch (IOException e) {
+            throw new RuntimeException("failed to extend spill file " + file, e);
+        }
+    }
+
+    public void add(int value) {
+        if ((size & CHUNK_MASK) == 0 && (size >> CHUNK_SHIFT) == chunkCount())
+            grow();
+        set(size++, value);
+    }
+
+    // Appends count copies of value
+    public void addFill(long count, int value) {
+        long end = size + count;
+        while (size < end) {
+            int chunk = (int)(size >> CHUNK_SHIFT);
+            if (chunk == chunkCount())
+                grow();
+            int from = (int)(size & CHUNK_MASK), to = (int)Math.min(CHUNK_SIZE, from + (end - size));
+            if (heapChunks != null) {
+                Arrays.fill(heapChunks.get(chunk), from, to, value);
+            } else {
+                IntBuffer b = mappedChunks.get(chunk);
+                for (int i = from; i < to; i++)
+                    b.put(i, value);
+            }
+            size += to - from;
+        }
+    }
+
+    private int chunkCount() {
+        return (heapChunks != null) ? heapChunks.size() : mappedChunks.size();
+    }
+
+    public int get(long index) {
+        int chunk = (int)(index >> CHUNK_SHIFT), offset = (int)(index & CHUNK_MASK);
+        return (heapChunks != null) ? heapChunks.get(chunk)[offset] : mappedChunks.get(chunk).get(offset);
+    }
+
+    public void set(long index, int value) {
+        int chunk = (int)(index >> CHUNK_SHIFT), offset = (int)(index & CHUNK_MASK);
+        if (heapChunks != null)
+            heapChunks.get(chunk)[offset] = value;
+        else
+            mappedChunks.get(chunk).put(offset, value);
+    }
+
+    // The mappings themselves are released once unreachable; the file can be deleted before that on Linux
+    public void close() throws IOException {
+        if (heapChunks != null) {
+            heapChunks.clear();
+            return;
+        }
+        mappedChunks.clear();
+        channel.close();
+        raf.close();
+        file.delete();
+    }
+}
@@ -0,0 +1,125 @@
+package dev.fpga.rapidwright;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Thread-safe int to dense id interner, without boxing. Keys are spread over independently locked open-addressing
+// stripes. As for StringInterner, use renumber() to make concurrently allocated ids reproducible.
+public class IntInterner {
+    private static final int STRIPES = 16;
+
+    private static class Stripe {
+        int[] keys = new int[16];
+        int[] ids = new int[16];
+        int size = 0;
+
+        Stripe() {
+            Arrays.fill(ids, -1);
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private int[] values = new int[64];
+    private int count = 0;
+
+    public IntInterner() {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Stripe stripe(int key) {
+        return stripes[mix(key) & (STRIPES - 1)];
+    }
+
+    // Slot of key, or of the empty slot where it would be inserted
+    private static int find(Stripe st, int key) {
+        int mask = st.keys.length - 1;
+        int slot = (mix(key) >>> 4) & mask;
+        while (st.ids[slot] != -1 && st.keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private static void insert(Stripe st, int key, int id) {
+        if ((st.size + 1) * 2 > st.keys.length) {
+            int[] oldKeys = st.keys, oldIds = st.ids;
+            st.keys = new int[oldKeys.length * 2];
+            st.ids = new int[oldKeys.length * 2];
+            Arrays.fill(st.ids, -1);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldIds[i] == -1)
+                    continue;
+                int slot = find(st, oldKeys[i]);
+                st.keys[slot] = oldKeys[i];
+                st.ids[slot] = oldIds[i];
+            }
+        }
+        int slot = find(st, key);
+        st.keys[slot] = key;
+        st.ids[slot] = id;
+        ++st.size;
+    }
+
+    public int intern(int key) {
+        Stripe st = stripe(key);
+        synchronized (st) {
+            int slot = find(st, key);
+            if (st.ids[slot] != -1)
+                return st.ids[slot];
+            int id;
+            synchronized (this) {
+                if (count == values.length)
+                    values = Arrays.copyOf(values, count * 2);
+                id = count++;
+                values[id] = key;
+            }
+            insert(st, key, id);
+            return id;
+        }
+    }
+
+    public synchronized int get(int id) {
+        return values[id];
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    // See StringInterner.renumber
+    public synchronized int[] renumber(int base, List<IntList> firstUses) {
+        int[] map = new int[count];
+        Arrays.fill(map, -1);
+        int[] renumbered = new int[values.length];
+        for (int i = 0; i < base; i++) {
+            map[i] = i;
+            renumbered[i] = values[i];
+        }
+        int next = base;
+        for (IntList uses : firstUses) {
+            for (int i = 0; i < uses.size(); i++) {
+                int id = uses.get(i);
+                if (map[id] != -1)
+                    continue;
+                map[id] = next;
+                renumbered[next++] = values[id];
+            }
+        }
+        if (next != count)
+            throw new IllegalStateException("interned value not covered by any first use list");
+        values = renumbered;
+        for (Stripe st : stripes) {
+            synchronized (st) {
+                for (int i = 0; i < st.ids.length; i++)
+                    if (st.ids[i] != -1)
+                        st.ids[i] = map[st.ids[i]];
+            }
+        }
+        return map;
+    }
+}
@@ -0,0 +1,43 @@
+package dev.fpga.rapidwright;
+
+import java.util.Arrays;
+
+// Growable list of primitive ints
+public class IntList {
+    public int[] data;
+    public int size = 0;
+
+    public IntList() {
+        this(16);
+    }
+
+    public IntList(int capacity) {
+        data = new int[Math.max(capacity, 1)];
+    }
+
+    public void add(int value) {
+        if (size == data.length)
+            data = Arrays.copyOf(data, data.length * 2);
+        data[size++] = value;
+    }
+
+    public int get(int index) {
+        return data[index];
+    }
+
+    public void set(int index, int value) {
+        data[index] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+}
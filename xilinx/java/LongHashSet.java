@@ -0,0 +1,81 @@
+package dev.fpga.rapidwright;
+
+import java.util.Arrays;
+
+// Open-addressing set of primitive longs, avoiding the boxing and per-entry objects of HashSet<Long>
+public class LongHashSet {
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys;
+    private int size = 0;
+    private boolean hasEmptyKey = false;
+
+    public LongHashSet() {
+        this(64);
+    }
+
+    public LongHashSet(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2)
+            capacity *= 2;
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    public boolean contains(long key) {
+        if (key == EMPTY)
+            return hasEmptyKey;
+        return keys[slot(key)] == key;
+    }
+
+    // Returns true if the key was not already present
+    public boolean add(long key) {
+        if (key == EMPTY) {
+            if (hasEmptyKey)
+                return false;
+            hasEmptyKey = true;
+            ++size;
+            return true;
+        }
+        int slot = slot(key);
+        if (keys[slot] == key)
+            return false;
+        keys[slot] = key;
+        ++size;
+        if (size * 2 > keys.length)
+            rehash(keys.length * 2);
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        long[] old = keys;
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        for (long key : old)
+            if (key != EMPTY)
+                keys[slot(key)] = key;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        hasEmptyKey = false;
+        size = 0;
+    }
+}
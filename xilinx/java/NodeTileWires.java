@@ -0,0 +1,68 @@
+package dev.fpga.rapidwright;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+// The tile wires of each exported node in CSR form, rebuilt from the tile wire to node maps, for searches over the
+// routing graph after the node tables have been written. Entries j in [start(node), end(node)) step by 2.
+public class NodeTileWires implements Closeable {
+    private final IntColumn nodeWireStart, nodeWires;
+
+    public NodeTileWires(int nodeCount, List<bbaexport.NextpnrTileInst> tileInsts, IntColumn wireToNode,
+            File spillDir) throws IOException {
+        // Count the tile wires of each node, then place them
+        nodeWireStart = new IntColumn(spillDir);
+        nodeWireStart.addFill(nodeCount + 1, 0);
+        for (bbaexport.NextpnrTileInst ti : tileInsts) {
+            for (int i = 0; i < ti.wire_count; i++) {
+                int n = wireToNode.get(ti.wire_base + i);
+                if (n != -1)
+                    nodeWireStart.set(n + 1, nodeWireStart.get(n + 1) + 2);
+            }
+        }
+        for (int n = 0; n < nodeCount; n++)
+            nodeWireStart.set(n + 1, nodeWireStart.get(n + 1) + nodeWireStart.get(n));
+        nodeWires = new IntColumn(spillDir);
+        nodeWires.addFill(nodeWireStart.get(nodeCount), 0);
+        IntColumn next = new IntColumn(spillDir);
+        for (int n = 0; n < nodeCount; n++)
+            next.add(nodeWireStart.get(n));
+        for (bbaexport.NextpnrTileInst ti : tileInsts) {
+            for (int i = 0; i < ti.wire_count; i++) {
+                int n = wireToNode.get(ti.wire_base + i);
+                if (n == -1)
+                    continue;
+                int pos = next.get(n);
+                nodeWires.set(pos, ti.index);
+                nodeWires.set(pos + 1, i);
+                next.set(n, pos + 2);
+            }
+        }
+        next.close();
+    }
+
+    public int start(int node) {
+        return nodeWireStart.get(node);
+    }
+
+    public int end(int node) {
+        return nodeWireStart.get(node + 1);
+    }
+
+    // Tile inst index of entry j
+    public int tile(int j) {
+        return nodeWires.get(j);
+    }
+
+    // Tile wire index of entry j
+    public int wire(int j) {
+        return nodeWires.get(j + 1);
+    }
+
+    public void close() throws IOException {
+        nodeWireStart.close();
+        nodeWires.close();
+    }
+}
@@ -0,0 +1,46 @@
+package dev.fpga.rapidwright;
+
+import java.util.HashSet;
+
+// Pip delays as nextpnr's Arch::getPipDelay computes them from the exported chipdb, so that searches over the routing
+// graph find costs on the router's own scale. Tile routing pips cost their timing class delay, but at least
+// PIP_EPSILON; getPipDelay's wire length and RC terms vanish, as every exported timing class is buffered with no
+// capacitance. Pips leaving global clock routing and pips onto Laguna wires have fixed costs, route-throughs cost
+// LUT_ROUTETHRU and all other pips (site, pseudo and constant) SITE_PIP. Intents are those of the source and
+// destination nodes, as getPipDelay's wireIntent gives.
+public class PipDelayModel {
+    public static final int PIP_EPSILON = 35, LUT_ROUTETHRU = 300, SITE_PIP = 25;
+    public static final int GLOBAL_TO_LOCAL = 250, GLOBAL = 100, LAGUNA = 5000;
+
+    private static final int TILE_ROUTING = bbaexport.NextpnrPipType.TILE_ROUTING.ordinal();
+    private static final int LUT_ROUTETHRU_TYPE = bbaexport.NextpnrPipType.LUT_ROUTETHRU.ordinal();
+
+    private final int[] classDelays; // of each pip timing class
+    private final HashSet<Integer> globalIntents = new HashSet<>(), localIntents = new HashSet<>();
+    private final int lagunaIntent;
+
+    public PipDelayModel(int[] classDelays, bbaexport exp) {
+        this.classDelays = classDelays;
+        for (String s : new String[] {"NODE_GLOBAL_VDISTR", "NODE_GLOBAL_HROUTE", "NODE_GLOBAL_VROUTE",
+                "NODE_GLOBAL_HDISTR", "NODE_GLOBAL_LEAF", "NODE_GLOBAL_BUFG"})
+            globalIntents.add(exp.makeConstId(s));
+        for (String s : new String[] {"NODE_LOCAL", "NODE_HLONG", "NODE_VLONG", "NODE_VQUAD", "NODE_HQUAD"})
+            localIntents.add(exp.makeConstId(s));
+        lagunaIntent = exp.makeConstId("NODE_LAGUNA_DATA");
+    }
+
+    public int delay(bbaexport.CompactTileType td, int pip, int srcIntent, int dstIntent) {
+        int type = td.pipType[pip];
+        if (type == LUT_ROUTETHRU_TYPE)
+            return LUT_ROUTETHRU;
+        if (type != TILE_ROUTING)
+            return SITE_PIP;
+        if (globalIntents.contains(srcIntent))
+            return localIntents.contains(dstIntent) ? GLOBAL_TO_LOCAL : GLOBAL;
+        if (dstIntent == lagunaIntent)
+            return LAGUNA;
+        // Pseudo pips keep timing class 0, which getPipDelay reads all the same
+        int cls = td.pipTmgCls[pip];
+        return Math.max((cls < classDelays.length) ? classDelays[cls] : 0, PIP_EPSILON);
+    }
+}
@@ -0,0 +1,115 @@
+package dev.fpga.rapidwright;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Buffered output to a FileChannel. The caller encodes into a direct ByteBuffer obtained from buffer(); full buffers
+// are handed to a dedicated writer thread, so that encoding and I/O overlap rather than alternate.
+public class PipelinedOutput {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int BUFFER_COUNT = 4;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final FileChannel channel;
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFER_COUNT);
+    private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(BUFFER_COUNT + 1);
+    private final Thread writer;
+    private volatile IOException error = null;
+    private ByteBuffer current;
+    private long flushed = 0;
+    private boolean finished = false;
+
+    public PipelinedOutput(FileChannel channel, ByteOrder order) {
+        this.channel = channel;
+        for (int i = 0; i < BUFFER_COUNT; i++)
+            free.add(ByteBuffer.allocateDirect(BUFFER_SIZE).order(order));
+        current = free.poll();
+        writer = new Thread(this::drain, "bba-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                ByteBuffer b = full.take();
+                if (b == END)
+                    return;
+                try {
+                    if (error == null)
+                        while (b.hasRemaining())
+                            channel.write(b);
+                } catch (IOException e) {
+                    error = e;
+                }
+                b.clear();
+                free.put(b);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Returns the current buffer, with at least the given number of bytes (at most BUFFER_SIZE) remaining
+    public ByteBuffer buffer(int bytes) throws IOException {
+        if (current.remaining() < bytes)
+            flush();
+        return current;
+    }
+
+    // Total number of bytes encoded so far
+    public long position() {
+        return flushed + current.position();
+    }
+
+    public void flush() throws IOException {
+        if (error != null)
+            throw error;
+        current.flip();
+        flushed += current.remaining();
+        try {
+            full.put(current);
+            current = free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while writing output", e);
+        }
+    }
+
+    // Writes out all buffered data and stops the writer thread; the channel itself is left open
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        flush();
+        finished = true;
+        try {
+            full.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while writing output", e);
+        }
+        if (error != null)
+            throw error;
+    }
+
+    // Discards all buffered data and stops the writer thread, without waiting for pending writes to complete
+    public void abort() {
+        if (finished)
+            return;
+        finished = true;
+        if (error == null)
+            error = new IOException("output aborted");
+        // At most BUFFER_COUNT - 1 buffers are queued while the caller holds one, so there is room for END
+        full.offer(END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package dev.fpga.rapidwright;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Router lookahead table: for nodes of each intent, the least delay to reach a sink (a site wire entered through a
+// site entrance pip) at each (dx, dy) tile offset within a window, and the number of pips on that path. It is found
+// by Dijkstra searches over the exported routing graph, weighted as the router's getPipDelay weights it (see
+// PipDelayModel), from the nodes anchored in a few sample interconnect tiles, keeping the least over the samples.
+// Offsets are from the anchor (first) tile of the source node to the interconnect tile of the sink's site, or the
+// sink's own tile if the site has none, which is where estimateDelay places a site wire. Searches do not leave the
+// window, so long paths that would are missed; entries no search reached are -1.
+public class RouterLookahead {
+    public final int range; // offsets run from -range to range in both directions
+    private final int size;
+    private int[] intents = new int[0]; // constid of each class, ascending
+    private int[][] delay, pips; // of each class, indexed by (dy + range) * size + (dx + range)
+    public final AtomicLong searches = new AtomicLong(), expanded = new AtomicLong();
+
+    // The exported routing graph, with the tile wires of each node in CSR form
+    private final int width;
+    private final List<bbaexport.NextpnrTileInst> tileInsts;
+    private final List<bbaexport.NextpnrTileType> tileTypes;
+    private final IntColumn wireToNode;
+    private final bbaexport.NodeWriter nodes;
+    private final PipDelayModel delays;
+    private final int[][] siteInterTile; // of each site of each tile inst
+    private final NodeTileWires nodeWires;
+
+    private static final int SITE_ENTRANCE = bbaexport.NextpnrPipType.SITE_ENTRANCE.ordinal();
+
+    public RouterLookahead(int range, int width, List<bbaexport.NextpnrTileInst> tileInsts,
+            List<bbaexport.NextpnrTileType> tileTypes, IntColumn wireToNode, bbaexport.NodeWriter nodes,
+            NodeTileWires nodeWires, PipDelayModel delays, int[][] siteInterTile) {
+        this.range = range;
+        this.size = 2 * range + 1;
+        this.width = width;
+        this.tileInsts = tileInsts;
+        this.tileTypes = tileTypes;
+        this.wireToNode = wireToNode;
+        this.nodes = nodes;
+        this.nodeWires = nodeWires;
+        this.delays = delays;
+        this.siteInterTile = siteInterTile;
+    }
+
+    public int classCount() {
+        return intents.length;
+    }
+
+    // Runs the searches from the given sample tiles; nodes with an intent in skipIntents are not sources
+    public void compute(ExecutorService pool, IntList sampleTiles, HashSet<Integer> skipIntents) {
+        // Source nodes anchored in each sample tile, by intent
+        ArrayList<TreeMap<Integer, IntList>> sources = new ArrayList<>();
+        TreeMap<Integer, Integer> classes = new TreeMap<>();
+        for (int s = 0; s < sampleTiles.size(); s++) {
+            bbaexport.NextpnrTileInst ti = tileInsts.get(sampleTiles.get(s));
+            TreeMap<Integer, IntList> byIntent = new TreeMap<>();
+            HashSet<Integer> seen = new HashSet<>();
+            for (int i = 0; i < ti.wire_count; i++) {
+                int n = wireToNode.get(ti.wire_base + i);
+                if (n == -1 || nodes.anchor(n) != ti.index || !seen.add(n))
+                    continue;
+                int intent = nodes.intent(n);
+                if (skipIntents.contains(intent))
+                    continue;
+                byIntent.computeIfAbsent(intent, k -> new IntList()).add(n);
+                classes.putIfAbsent(intent, 0);
+            }
+            sources.add(byIntent);
+        }
+        intents = new int[classes.size()];
+        int c = 0;
+        for (Integer intent : classes.keySet()) {
+            classes.put(intent, c);
+            intents[c++] = intent;
+        }
+        delay = new int[intents.length][size * size];
+        pips = new int[intents.length][size * size];
+        for (int i = 0; i < intents.length; i++) {
+            Arrays.fill(delay[i], -1);
+            Arrays.fill(pips[i], -1);
+        }
+
+        ArrayList<Future<int[][]>> jobs = new ArrayList<>();
+        ArrayList<Integer> jobClass = new ArrayList<>();
+        for (int s = 0; s < sampleTiles.size(); s++) {
+            int tile = sampleTiles.get(s);
+            for (Map.Entry<Integer, IntList> e : sources.get(s).entrySet()) {
+                IntList from = e.getValue();
+                jobs.add(pool.submit(() -> search(tile, from)));
+                jobClass.add(classes.get(e.getKey()));
+            }
+        }
+        // The least (delay, pips) over the samples, which does not depend on the order of the searches
+        for (int j = 0; j < jobs.size(); j++) {
+            int[][] result = bbaexport.getResult(jobs.get(j));
+            int[] d = delay[jobClass.get(j)], p = pips[jobClass.get(j)];
+            for (int i = 0; i < d.length; i++) {
+                if (result[0][i] == -1)
+                    continue;
+                if (d[i] == -1 || result[0][i] < d[i] || (result[0][i] == d[i] && result[1][i] < p[i])) {
+                    d[i] = result[0][i];
+                    p[i] = result[1][i];
+                }
+            }
+        }
+    }
+
+    // Dijkstra search from a set of nodes all anchored in one tile; returns the delay and pip count tables
+    private int[][] search(int sampleTile, IntList sources) {
+        int sx = sampleTile % width, sy = sampleTile / width;
+        int[] bestDelay = new int[size * size], bestPips = new int[size * size];
+        Arrays.fill(bestDelay, -1);
+        Arrays.fill(bestPips, -1);
+        NodeDistances dist = new NodeDistances();
+        LongHeap queue = new LongHeap();
+        for (int i = 0; i < sources.size(); i++) {
+            dist.update(sources.get(i), 0, 0);
+            queue.push(sources.get(i));
+        }
+        long count = 0;
+        while (!queue.isEmpty()) {
+            long top = queue.pop();
+            int node = (int)top, d = (int)(top >>> 32);
+            int slot = dist.find(node);
+            if (dist.done[slot] || dist.delay[slot] != d)
+                continue;
+            dist.done[slot] = true;
+            int hops = dist.pips[slot], intent = nodes.intent(node);
+            ++count;
+            for (int j = nodeWires.start(node), end = nodeWires.end(node); j < end; j += 2) {
+                bbaexport.NextpnrTileInst ti = tileInsts.get(nodeWires.tile(j));
+                int wire = nodeWires.wire(j);
+                bbaexport.CompactTileType td = tileTypes.get(ti.type).data;
+                for (int i = td.downhillStart[wire]; i < td.downhillStart[wire + 1]; i++) {
+                    int pip = td.downhill[i], to = td.pipTo[pip], site = td.wireSite[to];
+                    if (site != -1) {
+                        if (td.pipType[pip] != SITE_ENTRANCE)
+                            continue;
+                        int[] inter = siteInterTile[ti.index];
+                        int sink = (site < inter.length) ? inter[site] : ti.index;
+                        int dx = sink % width - sx, dy = sink / width - sy;
+                        if (Math.abs(dx) > range || Math.abs(dy) > range)
+                            continue;
+                        int k = (dy + range) * size + (dx + range), sd = d + delays.delay(td, pip, intent, -1);
+                        if (bestDelay[k] == -1 || sd < bestDelay[k] || (sd == bestDelay[k] && hops + 1 < bestPips[k])) {
+                            bestDelay[k] = sd;
+                            bestPips[k] = hops + 1;
+                        }
+                        continue;
+                    }
+                    int next = wireToNode.get(ti.wire_base + to);
+                    if (next == -1)
+                        continue;
+                    int anchor = nodes.anchor(next);
+                    if (Math.abs(anchor % width - sx) > range || Math.abs(anchor / width - sy) > range)
+                        continue;
+                    int nd = d + delays.delay(td, pip, intent, nodes.intent(next));
+                    if (dist.update(next, nd, hops + 1))
+                        queue.push((long)nd << 32 | next);
+                }
+            }
+        }
+        searches.incrementAndGet();
+        expanded.addAndGet(count);
+        return new int[][] {bestDelay, bestPips};
+    }
+
+    public void write(BBAWriter bba) throws IOException {
+        for (int c = 0; c < intents.length; c++) {
+            bba.label("lookahead_c" + c);
+            for (int i = 0; i < size * size; i++) {
+                bba.u32(delay[c][i]); // least delay to a sink at this offset, -1 if none found
+                bba.u32(pips[c][i]); // pips on that path, including the site entrance
+            }
+        }
+        bba.label("lookahead_classes");
+        for (int c = 0; c < intents.length; c++) {
+            bba.u32(intents[c]); // source node intent constid
+            bba.ref("lookahead_c" + c); // ref to entries, by dy then dx
+        }
+        bba.label("lookahead");
+        bba.u32(-range); // least dx
+        bba.u32(-range); // least dy
+        bba.u32(size); // number of dx values
+        bba.u32(size); // number of dy values
+        bba.u32(intents.length); // number of classes
+        bba.ref("lookahead_classes");
+    }
+
+    // Open-addressing map from node to its best known delay and pip count, and whether it is settled
+    private static class NodeDistances {
+        int[] keys = new int[1024], delay = new int[1024], pips = new int[1024];
+        boolean[] done = new boolean[1024];
+        int count = 0;
+
+        NodeDistances() {
+            Arrays.fill(keys, -1);
+        }
+
+        int find(int node) {
+            int mask = keys.length - 1;
+            int slot = (node * 0x9E3779B9 >>> 8) & mask;
+            while (keys[slot] != -1 && keys[slot] != node)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        // Returns true if the node was not known, or is now reached with less delay
+        boolean update(int node, int d, int p) {
+            int slot = find(node);
+            if (keys[slot] == node) {
+                if (done[slot] || d >= delay[slot])
+                    return false;
+                delay[slot] = d;
+                pips[slot] = p;
+                return true;
+            }
+            if ((count + 1) * 2 > keys.length) {
+                grow();
+                slot = find(node);
+            }
+            keys[slot] = node;
+            delay[slot] = d;
+            pips[slot] = p;
+            ++count;
+            return true;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys, oldDelay = delay, oldPips = pips;
+            boolean[] oldDone = done;
+            keys = new int[oldKeys.length * 2];
+            delay = new int[keys.length];
+            pips = new int[keys.length];
+            done = new boolean[keys.length];
+            Arrays.fill(keys, -1);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == -1)
+                    continue;
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                delay[slot] = oldDelay[i];
+                pips[slot] = oldPips[i];
+                done[slot] = oldDone[i];
+            }
+        }
+    }
+
+    // Binary min-heap of longs
+    private static class LongHeap {
+        long[] heap = new long[1024];
+        int size = 0;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void push(long v) {
+            if (size == heap.length)
+                heap = Arrays.copyOf(heap, size * 2);
+            int i = size++;
+            while (i > 0 && heap[(i - 1) / 2] > v) {
+                heap[i] = heap[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            heap[i] = v;
+        }
+
+        long pop() {
+            long top = heap[0], v = heap[--size];
+            int i = 0;
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && heap[child + 1] < heap[child])
+                    ++child;
+                if (heap[child] >= v)
+                    break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = v;
+            return top;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package dev.fpga.rapidwright;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.function.IntBinaryOperator;
+
+// Distance from each site pin to the interconnect: for an output pin, the least delay and number of pips from the
+// node the pin drives to a node with a tile wire in an interconnect tile; for an input pin, the same from such a node
+// to the node that drives the pin. Pips are weighted by their timing class delay, as in the router lookahead. Pins
+// are found from the site entrance and exit pips, and keyed by the primary site type of their site and the name of
+// the site wire, which site variants share. Each tile type is searched from a few of its instances, keeping the
+// least; searches give up after MAX_PIPS pips. A pip's timing class delay already counts the nodes at both of its
+// ends, so the node of the pin itself only adds its own delay when it reaches the interconnect without any pip. The
+// primary site type of each site of each tile type is written too, for looking pins up from a site wire.
+public class SitePinTiming {
+    public static final int MAX_PIPS = 8;
+
+    private final List<bbaexport.NextpnrTileInst> tileInsts;
+    private final List<bbaexport.NextpnrTileType> tileTypes;
+    private final IntColumn wireToNode;
+    private final NodeTileWires nodeWires;
+    private final int[] classDelays; // of each pip timing class
+    private final boolean[] intTile; // of each tile inst
+    private final IntBinaryOperator nodeDelay; // delay of the node of a (tile inst, tile wire) by itself
+    private int[][][] siteTypes;
+    public long searches = 0;
+
+    // By (site type, pin, direction), the least (delay, pips) found, or -1s if no search reached the interconnect
+    private final TreeMap<Long, int[]> entries = new TreeMap<>();
+
+    private static final int SITE_ENTRANCE = bbaexport.NextpnrPipType.SITE_ENTRANCE.ordinal();
+    private static final int SITE_EXIT = bbaexport.NextpnrPipType.SITE_EXIT.ordinal();
+
+    public SitePinTiming(List<bbaexport.NextpnrTileInst> tileInsts, List<bbaexport.NextpnrTileType> tileTypes,
+            IntColumn wireToNode, NodeTileWires nodeWires, int[] classDelays, boolean[] intTile,
+            IntBinaryOperator nodeDelay) {
+        this.tileInsts = tileInsts;
+        this.tileTypes = tileTypes;
+        this.wireToNode = wireToNode;
+        this.nodeWires = nodeWires;
+        this.classDelays = classDelays;
+        this.intTile = intTile;
+        this.nodeDelay = nodeDelay;
+    }
+
+    public int count() {
+        return entries.size();
+    }
+
+    // siteTypes holds the site type constid of each variant of each site of each tile type, of which the primary
+    // (variant 0) is used; samples is the instances searched from per tile type
+    public void compute(int[][][] siteTypes, int samples) {
+        this.siteTypes = siteTypes;
+        ArrayList<ArrayList<Integer>> instances = new ArrayList<>();
+        for (int t = 0; t < tileTypes.size(); t++)
+            instances.add(new ArrayList<>());
+        for (bbaexport.NextpnrTileInst ti : tileInsts)
+            instances.get(ti.type).add(ti.index);
+        for (int t = 0; t < tileTypes.size(); t++) {
+            bbaexport.CompactTileType td = tileTypes.get(t).data;
+            ArrayList<Integer> insts = instances.get(t);
+            int n = Math.min(samples, insts.size());
+            for (int p = 0; p < td.pipCount; p++) {
+                boolean output = td.pipType[p] == SITE_EXIT;
+                if (!output && td.pipType[p] != SITE_ENTRANCE)
+                    continue;
+                int siteWire = output ? td.pipFrom[p] : td.pipTo[p];
+                int tileWire = output ? td.pipTo[p] : td.pipFrom[p];
+                int site = td.wireSite[siteWire];
+                if (siteTypes[t] == null || site < 0 || site >= siteTypes[t].length)
+                    continue;
+                long key = (long)siteTypes[t][site][0] << 32 | (long)td.wireName[siteWire] << 1 | (output ? 1 : 0);
+                int[] best = entries.computeIfAbsent(key, k -> new int[] {-1, -1});
+                for (int i = 0; i < n; i++) {
+                    bbaexport.NextpnrTileInst ti = tileInsts.get(insts.get((int)((2L * i + 1) * insts.size() / (2L * n))));
+                    int node = wireToNode.get(ti.wire_base + tileWire);
+                    if (node == -1)
+                        continue;
+                    int[] found = search(node, output);
+                    if (found != null && found[1] == 0)
+                        found[0] = nodeDelay.applyAsInt(ti.index, tileWire);
+                    if (found != null && (best[0] == -1 || found[0] < best[0] || (found[0] == best[0] && found[1] < best[1]))) {
+                        best[0] = found[0];
+                        best[1] = found[1];
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean inInterconnect(int node) {
+        for (int j = nodeWires.start(node), end = nodeWires.end(node); j < end; j += 2)
+            if (intTile[nodeWires.tile(j)])
+                return true;
+        return false;
+    }
+
+    // Dijkstra search downhill (for an output pin) or uphill from a node; returns the delay and pip count to the
+    // nearest node in an interconnect tile, or null if there is none within MAX_PIPS
+    private int[] search(int from, boolean downhill) {
+        ++searches;
+        HashMap<Integer, int[]> dist = new HashMap<>(); // delay, pips, settled
+        PriorityQueue<long[]> queue = new PriorityQueue<>((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        dist.put(from, new int[] {0, 0, 0});
+        queue.add(new long[] {0, 0, from});
+        while (!queue.isEmpty()) {
+            long[] top = queue.poll();
+            int node = (int)top[2];
+            int[] nd = dist.get(node);
+            if (nd[2] != 0 || nd[0] != top[0] || nd[1] != top[1])
+                continue;
+            nd[2] = 1;
+            if (inInterconnect(node))
+                return new int[] {nd[0], nd[1]};
+            if (nd[1] == MAX_PIPS)
+                continue;
+            for (int j = nodeWires.start(node), end = nodeWires.end(node); j < end; j += 2) {
+                bbaexport.NextpnrTileInst ti = tileInsts.get(nodeWires.tile(j));
+                int wire = nodeWires.wire(j);
+                bbaexport.CompactTileType td = tileTypes.get(ti.type).data;
+                int[] start = downhill ? td.downhillStart : td.uphillStart, pips = downhill ? td.downhill : td.uphill;
+                for (int i = start[wire]; i < start[wire + 1]; i++) {
+                    int pip = pips[i], other = downhill ? td.pipTo[pip] : td.pipFrom[pip];
+                    if (td.wireSite[other] != -1)
+                        continue;
+                    int next = wireToNode.get(ti.wire_base + other);
+                    if (next == -1)
+                        continue;
+                    int d = nd[0] + (td.pipTimed[pip] ? classDelays[td.pipTmgCls[pip]] : 0), h = nd[1] + 1;
+                    int[] known = dist.get(next);
+                    if (known != null && (known[2] != 0 || known[0] < d || (known[0] == d && known[1] <= h)))
+                        continue;
+                    dist.put(next, new int[] {d, h, 0});
+                    queue.add(new long[] {d, h, next});
+                }
+            }
+        }
+        return null;
+    }
+
+    public void write(BBAWriter bba) throws IOException {
+        bba.label("site_pin_timing");
+        for (Map.Entry<Long, int[]> e : entries.entrySet()) {
+            long key = e.getKey();
+            bba.u32((int)(key >>> 32)); // site type constid
+            bba.u32((int)key >>> 1); // site pin (site wire name) constid
+            bba.u32((int)key & 1); // 0 for an input pin, 1 for an output pin
+            bba.u32(e.getValue()[1]); // pips between the pin and the interconnect, -1 if none found
+            bba.u32(e.getValue()[0]); // least delay of those pips, -1 if none found
+        }
+        for (int t = 0; t < tileTypes.size(); t++) {
+            bba.label("t" + t + "_site_types");
+            int[][] types = siteTypes[t];
+            for (int s = 0; types != null && s < types.length; s++)
+                bba.u32((types[s].length > 0) ? types[s][0] : -1); // primary site type constid
+        }
+        bba.label("tiletype_site_types");
+        for (int t = 0; t < tileTypes.size(); t++) {
+            bba.u32((siteTypes[t] != null) ? siteTypes[t].length : 0); // number of sites
+            bba.ref("t" + t + "_site_types");
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package dev.fpga.rapidwright;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// Which bel pins of each site variant can be reached from each of its site pins through the site's internal pips: for
+// an input pin, the bel inputs it can drive; for an output pin, the bel outputs that can drive it. A site pin is a
+// site wire with a site entrance pip uphill (input) or site exit pip downhill (output). Each (site, variant) of a tile
+// type lists its bel pins, by bel and then port name constid, its site pins, in wire order, and one bitset over the bel
+// pins for each site pin, so that nextpnr can find a bel pin or site pin by binary search. Sites of the same type have
+// the same bitsets, so identical ones are written once.
+public class SiteReachability {
+    private static final int SITE_ENTRANCE = bbaexport.NextpnrPipType.SITE_ENTRANCE.ordinal();
+    private static final int SITE_EXIT = bbaexport.NextpnrPipType.SITE_EXIT.ordinal();
+    private static final int SITE_INTERNAL = bbaexport.NextpnrPipType.SITE_INTERNAL.ordinal();
+
+    private static class VariantReach {
+        int site, variant, siteType;
+        IntList belPins = new IntList(); // bel index, port constid
+        IntList pins = new IntList(); // site wire index, 1 if an output
+        String bitsLabel;
+    }
+
+    private final ArrayList<ArrayList<VariantReach>> byTileType = new ArrayList<>();
+    private final HashMap<bbaexport.IntArrayKey, String> bitsLabels = new HashMap<>();
+    private final ArrayList<int[]> bits = new ArrayList<>(); // in label order
+
+    // siteTypes holds the site type constid of each variant of each site of each tile type
+    public SiteReachability(List<bbaexport.NextpnrTileType> tileTypes, int[][][] siteTypes) {
+        for (bbaexport.NextpnrTileType tt : tileTypes) {
+            bbaexport.CompactTileType td = tt.data;
+            TreeSet<Long> variants = new TreeSet<>();
+            for (int b = 0; b < td.belCount; b++)
+                if (td.belSite[b] >= 0)
+                    variants.add((long)td.belSite[b] << 32 | td.belSiteVariant[b]);
+            ArrayList<VariantReach> reach = new ArrayList<>();
+            for (long sv : variants) {
+                VariantReach vr = new VariantReach();
+                vr.site = (int)(sv >>> 32);
+                vr.variant = (int)sv;
+                int[][] types = siteTypes[tt.index];
+                vr.siteType = (types != null && vr.site < types.length && vr.variant < types[vr.site].length)
+                        ? types[vr.site][vr.variant] : -1;
+                compute(td, vr);
+                reach.add(vr);
+            }
+            byTileType.add(reach);
+        }
+    }
+
+    private void compute(bbaexport.CompactTileType td, VariantReach vr) {
+        // Bit of each bel port of the variant, by its index in the port arrays
+        HashMap<Integer, Integer> portBit = new HashMap<>();
+        for (int b = 0; b < td.belCount; b++) {
+            if (td.belSite[b] != vr.site || td.belSiteVariant[b] != vr.variant)
+                continue;
+            TreeMap<Integer, Integer> byName = new TreeMap<>();
+            for (int i = td.belPortStart[b]; i < td.belPortStart[b + 1]; i++)
+                byName.put(td.belPortName[i], i);
+            for (int i : byName.values()) {
+                portBit.put(i, vr.belPins.size() / 2);
+                vr.belPins.add(b);
+                vr.belPins.add(td.belPortName[i]);
+            }
+        }
+        int words = (vr.belPins.size() / 2 + 31) / 32;
+        IntList rows = new IntList();
+        for (int w = 0; w < td.wireCount; w++) {
+            if (td.wireSite[w] != vr.site)
+                continue;
+            for (int output = 0; output < 2; output++) {
+                int[] ioStart = (output == 1) ? td.downhillStart : td.uphillStart;
+                int[] io = (output == 1) ? td.downhill : td.uphill;
+                boolean isPin = false;
+                for (int i = ioStart[w]; i < ioStart[w + 1]; i++)
+                    isPin |= td.pipType[io[i]] == ((output == 1) ? SITE_EXIT : SITE_ENTRANCE);
+                if (!isPin)
+                    continue;
+                vr.pins.add(w);
+                vr.pins.add(output);
+                int[] row = reach(td, vr, portBit, w, output == 1, words);
+                for (int v : row)
+                    rows.add(v);
+            }
+        }
+        bbaexport.IntArrayKey key = new bbaexport.IntArrayKey(rows.toArray());
+        vr.bitsLabel = bitsLabels.get(key);
+        if (vr.bitsLabel == null) {
+            vr.bitsLabel = "site_reach_bits" + bits.size();
+            bitsLabels.put(key, vr.bitsLabel);
+            bits.add(key.data);
+        }
+    }
+
+    // Walks the variant's site pips downhill from an input pin, or uphill from an output pin, marking the bel pins
+    // of the right direction on each wire reached
+    private static int[] reach(bbaexport.CompactTileType td, VariantReach vr, HashMap<Integer, Integer> portBit,
+            int pinWire, boolean output, int words) {
+        int[] row = new int[words];
+        boolean[] seen = new boolean[td.wireCount];
+        IntList queue = new IntList();
+        queue.add(pinWire);
+        seen[pinWire] = true;
+        for (int q = 0; q < queue.size(); q++) {
+            int w = queue.get(q);
+            for (int i = td.belPinStart[w]; i < td.belPinStart[w + 1]; i++) {
+                int b = td.belPinBel[i];
+                for (int j = td.belPortStart[b]; j < td.belPortStart[b + 1]; j++) {
+                    Integer bit = portBit.get(j);
+                    if (bit == null || td.belPortName[j] != td.belPinPort[i] || td.belPortWire[j] != w)
+                        continue;
+                    int type = td.belPortType[j]; // 0 input, 1 output, 2 bidirectional
+                    if (type == 2 || type == (output ? 1 : 0))
+                        row[bit / 32] |= 1 << (bit % 32);
+                }
+            }
+            int[] start = output ? td.uphillStart : td.downhillStart, pips = output ? td.uphill : td.downhill;
+            for (int i = start[w]; i < start[w + 1]; i++) {
+                int pip = pips[i];
+                if (td.pipType[pip] != SITE_INTERNAL || td.pipSite[pip] != vr.site
+                        || td.pipSiteVariant[pip] != vr.variant)
+                    continue;
+                int next = output ? td.pipFrom[pip] : td.pipTo[pip];
+                if (!seen[next]) {
+                    seen[next] = true;
+                    queue.add(next);
+                }
+            }
+        }
+        return row;
+    }
+
+    public int variantCount() {
+        int n = 0;
+        for (ArrayList<VariantReach> reach : byTileType)
+            n += reach.size();
+        return n;
+    }
+
+    public int bitsetCount() {
+        return bits.size();
+    }
+
+    public void write(BBAWriter bba) throws IOException {
+        for (int i = 0; i < bits.size(); i++) {
+            bba.label("site_reach_bits" + i);
+            for (int v : bits.get(i))
+                bba.u32(v); // bel pin bitset of each site pin, in 32-bit words
+        }
+        for (int t = 0; t < byTileType.size(); t++) {
+            ArrayList<VariantReach> reach = byTileType.get(t);
+            for (int e = 0; e < reach.size(); e++) {
+                VariantReach vr = reach.get(e);
+                bba.label("t" + t + "r" + e + "_bel_pins");
+                for (int i = 0; i < vr.belPins.size(); i++)
+                    bba.u32(vr.belPins.get(i)); // bel index in tile type, then port name constid
+                bba.label("t" + t + "r" + e + "_site_pins");
+                for (int i = 0; i < vr.pins.size(); i++)
+                    bba.u32(vr.pins.get(i)); // site wire index, then 1 for an output pin
+            }
+            bba.label("t" + t + "_site_reach");
+            for (int e = 0; e < reach.size(); e++) {
+                VariantReach vr = reach.get(e);
+                bba.u16(vr.site); // site index in tile
+                bba.u16(vr.variant); // site variant
+                bba.u32(vr.siteType); // site type constid of this variant
+                bba.u32(vr.belPins.size() / 2); // number of bel pins
+                bba.ref("t" + t + "r" + e + "_bel_pins");
+                bba.u32(vr.pins.size() / 2); // number of site pins
+                bba.ref("t" + t + "r" + e + "_site_pins");
+                bba.ref(vr.bitsLabel); // (bel pins + 31) / 32 words for each site pin
+            }
+        }
+        bba.label("tiletype_site_reach");
+        for (int t = 0; t < byTileType.size(); t++) {
+            bba.u32(byTileType.get(t).size()); // number of site variants, by site then variant
+            bba.ref("t" + t + "_site_reach");
+        }
+    }
+}
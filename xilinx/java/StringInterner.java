@@ -0,0 +1,66 @@
+package dev.fpga.rapidwright;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Thread-safe string to dense id interner. Lookups of existing strings are lock-free; allocating a new id takes
+// a lock, which is rare once the common names have been seen. Ids allocated concurrently depend on scheduling,
+// use renumber() to put them into a reproducible order.
+public class StringInterner {
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[1024];
+    private int count = 0;
+
+    public int intern(String s) {
+        Integer id = ids.get(s);
+        if (id != null)
+            return id;
+        synchronized (this) {
+            id = ids.get(s);
+            if (id != null)
+                return id;
+            if (count == values.length)
+                values = Arrays.copyOf(values, count * 2);
+            values[count] = s;
+            ids.put(s, count);
+            return count++;
+        }
+    }
+
+    public String get(int id) {
+        return values[id];
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    // Renumber the ids from 'base' onwards in order of their first use in each list in turn (ids below base are
+    // left alone). Returns the old to new id mapping. Must not be called concurrently with intern().
+    public synchronized int[] renumber(int base, List<IntList> firstUses) {
+        int[] map = new int[count];
+        Arrays.fill(map, -1);
+        String[] renumbered = new String[values.length];
+        for (int i = 0; i < base; i++) {
+            map[i] = i;
+            renumbered[i] = values[i];
+        }
+        int next = base;
+        for (IntList uses : firstUses) {
+            for (int i = 0; i < uses.size(); i++) {
+                int id = uses.get(i);
+                if (map[id] != -1)
+                    continue;
+                map[id] = next;
+                renumbered[next++] = values[id];
+            }
+        }
+        if (next != count)
+            throw new IllegalStateException("interned string not covered by any first use list");
+        values = renumbered;
+        for (int i = base; i < count; i++)
+            ids.put(values[i], i);
+        return map;
+    }
+}
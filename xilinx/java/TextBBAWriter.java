@@ -0,0 +1,125 @@
+package dev.fpga.rapidwright;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+// Writes the textual bba format, to be converted to a binary chipdb using bbasm. Directives are encoded by hand
+// straight into the output buffers, as this runs once per emitted field.
+public class TextBBAWriter implements BBAWriter {
+    private static final byte[] PRE = ascii("pre "), POST = ascii("post "), PUSH = ascii("push "), POP = ascii("pop"),
+            OFFSET32 = ascii("offset32"), LABEL = ascii("label "), REF = ascii("ref "), STR = ascii("str |"),
+            ALIGN = ascii("align"), U8 = ascii("u8 "), U16 = ascii("u16 "), U32 = ascii("u32 ");
+
+    private final String filename;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final PipelinedOutput out;
+
+    public TextBBAWriter(String filename) throws IOException {
+        this.filename = filename;
+        file = new RandomAccessFile(filename, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        out = new PipelinedOutput(channel, ByteOrder.BIG_ENDIAN);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void directive(byte[] keyword) throws IOException {
+        out.buffer(keyword.length + 1).put(keyword).put((byte)'\n');
+    }
+
+    private void directive(byte[] keyword, String arg) throws IOException {
+        int n = arg.length();
+        ByteBuffer b = out.buffer(keyword.length + n + 1);
+        if (b.remaining() < keyword.length + n + 1) {
+            // Too long for a single buffer (or not ASCII): fall back to encoding the whole string
+            putLong(keyword, arg);
+            return;
+        }
+        b.put(keyword);
+        for (int i = 0; i < n; i++) {
+            char c = arg.charAt(i);
+            if (c >= 0x80) {
+                b.position(b.position() - i - keyword.length);
+                putLong(keyword, arg);
+                return;
+            }
+            b.put((byte)c);
+        }
+        b.put((byte)'\n');
+    }
+
+    private void putLong(byte[] keyword, String arg) throws IOException {
+        out.buffer(keyword.length).put(keyword);
+        for (byte c : arg.getBytes(StandardCharsets.UTF_8))
+            out.buffer(1).put(c);
+        out.buffer(1).put((byte)'\n');
+    }
+
+    private void directive(byte[] keyword, int value) throws IOException {
+        ByteBuffer b = out.buffer(keyword.length + 12);
+        b.put(keyword);
+        long v = value;
+        if (v < 0) {
+            b.put((byte)'-');
+            v = -v;
+        }
+        int start = b.position();
+        do {
+            b.put((byte)('0' + (int)(v % 10)));
+            v /= 10;
+        } while (v != 0);
+        // Digits were written least significant first
+        for (int i = start, j = b.position() - 1; i < j; i++, j--) {
+            byte t = b.get(i);
+            b.put(i, b.get(j));
+            b.put(j, t);
+        }
+        b.put((byte)'\n');
+    }
+
+    public void pre(String s) throws IOException { directive(PRE, s); }
+    public void post(String s) throws IOException { directive(POST, s); }
+    public void push(String name) throws IOException { directive(PUSH, name); }
+    public void pop() throws IOException { directive(POP); }
+    public void offset32() throws IOException { directive(OFFSET32); }
+
+    public void label(String name) throws IOException { directive(LABEL, name); }
+    public void ref(String name) throws IOException { directive(REF, name); }
+    public void str(String s) throws IOException { directive(STR, s + "|"); }
+    public void align() throws IOException { directive(ALIGN); }
+
+    public void u8(int value) throws IOException { directive(U8, value); }
+    public void u16(int value) throws IOException { directive(U16, value); }
+    public void u32(int value) throws IOException { directive(U32, value); }
+
+    public long position() { return out.position(); }
+
+    public void close() throws IOException {
+        try {
+            out.finish();
+        } finally {
+            channel.close();
+            file.close();
+        }
+    }
+
+    public void abort() {
+        out.abort();
+        try {
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            // the partial file is deleted below regardless
+        }
+        new File(filename).delete();
+    }
+}
@@ -1,4 +1,3 @@
-
 package dev.fpga.rapidwright;
 
 import com.xilinx.rapidwright.design.Design;
@@ -10,15 +9,38 @@ import com.xilinx.rapidwright.util.Utils;
 import com.xilinx.rapidwright.util.RapidWright;
 import com.xilinx.rapidwright.timing.*;
 
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
+// Each instance exports one device. All state of an export lives in the instance, so that several devices can be
+// exported by one process (and concurrently), sharing an ExportSession.
 public class bbaexport {
 
-    static boolean xc7_flag = false;
+    private final ExportSession session;
+    private final String part;
+    private final boolean xc7_flag;
+    private final Design des;
+    private final String log_prefix;
+    public final ExportMetrics metrics;
+
+    public bbaexport(ExportSession session, String part, String log_prefix) {
+        this.session = session;
+        this.part = part;
+        this.xc7_flag = part.contains("xc7");
+        this.log_prefix = log_prefix;
+        this.metrics = new ExportMetrics(part);
+        // Seems like we need to use a Design to create SiteInsts to probe alternate site types...
+        this.des = new Design("top", part);
+    }
+
+    private void log(String s) {
+        System.out.println(log_prefix + s);
+    }
 
     public static String sitePinToGlobalWire(HashSet<Node> discoveredWires, Device d, Site s, String pinname) {
         String tw = s.getTileWireNameFromPinName(pinname);
@@ -38,7 +60,7 @@ public class bbaexport {
         CONST_DRIVER,
     }
 
-    static class NextpnrBelPin {
+    class NextpnrBelPin {
         public NextpnrBelPin(int bel, String port) {
             this.bel = bel;
             this.port = makeConstId(port);
@@ -47,7 +69,7 @@ public class bbaexport {
         public int port;
     }
 
-    static class NextpnrWire {
+    class NextpnrWire {
 
         public int name;
         public int index;
@@ -88,6 +110,8 @@ public class bbaexport {
         public int extra_data = 0;
         public int site = -1;
         public int siteVariant = -1;
+
+        public boolean hasTimingClass = false; // tmg_cls was allocated by get_pip_timing_class
     }
 
     static class NextpnrBelWire {
@@ -96,7 +120,7 @@ public class bbaexport {
         public int wire;
     }
 
-    static class NextpnrBel {
+    class NextpnrBel {
 
         public NextpnrBel(String name, int index, String type, String nativeType, int site, int siteVariant, int z, int isRouting) {
             this.name = makeConstId(name);
@@ -118,7 +142,7 @@ public class bbaexport {
         public ArrayList<NextpnrBelWire> belports;
     }
 
-    static class NextpnrPropDelay {
+    class NextpnrPropDelay {
         public NextpnrPropDelay(String from_port, String to_port, int min_delay, int max_delay) {
             this.from_port = makeConstId(from_port);
             this.to_port = makeConstId(to_port);
@@ -137,7 +161,7 @@ public class bbaexport {
         TIMING_CHECK_WIDTHd,
     }
 
-    static class NextpnrTimingCheck {
+    class NextpnrTimingCheck {
         public NextpnrTimingCheck(NextpnrTmgChkType chktype, String sig_port, String clock_port, int min_value, int max_value) {
             this.chktype = chktype;
             this.sig_port = makeConstId(sig_port);
@@ -152,7 +176,7 @@ public class bbaexport {
         public int max_value;
     }
 
-    static class NextpnrCellTiming {
+    class NextpnrCellTiming {
         public NextpnrCellTiming(String variant_name) {
             this.variant_name = makeConstId(variant_name);
             this.delays = new ArrayList<>();
@@ -183,7 +207,7 @@ public class bbaexport {
         }
     }
 
-    static class NextpnrInstanceTiming {
+    class NextpnrInstanceTiming {
         public NextpnrInstanceTiming(String inst_name) {
             this.inst_name = makeConstId(inst_name);
             this.variants = new ArrayList<>();
@@ -202,7 +226,7 @@ public class bbaexport {
         public ArrayList<NextpnrCellTiming> variants;
     }
 
-    static class NextpnrTileCellTiming {
+    class NextpnrTileCellTiming {
         public NextpnrTileCellTiming(String tile_type) {
             this.tile_type = makeConstId(tile_type);
             this.instances = new ArrayList<>();
@@ -221,22 +245,229 @@ public class bbaexport {
         public ArrayList<NextpnrInstanceTiming> instances;
     }
 
-    private static ArrayList<String> constIds = new ArrayList<>();
-    private static HashMap<String, Integer> knownConstIds = new HashMap<>();
-
-    private static ArrayList<Integer> pipDelays = new ArrayList<>();
-    private static HashMap<Integer, Integer> knownPipDelays = new HashMap<>();
+    private final StringInterner constIds = new StringInterner();
+    private final IntInterner pipDelays = new IntInterner();
 
-    private static int get_pip_timing_class(int delay_ps) {
-        if (knownPipDelays.containsKey(delay_ps))
-            return knownPipDelays.get(delay_ps);
-        int index = pipDelays.size();
-        knownPipDelays.put(delay_ps, index);
-        pipDelays.add(delay_ps);
+    private int get_pip_timing_class(int delay_ps) {
+        int index = pipDelays.intern(delay_ps);
+        InternScope scope = currentScope.get();
+        if (scope != null)
+            scope.pipDelays.use(index);
         return index;
     }
 
-    static class NextpnrTileType {
+    // Records the order in which one task first used each constid or pip timing class, so that ids allocated
+    // concurrently can be renumbered into the order a serial run would have allocated them
+    static class FirstUses {
+        public BitSet seen = new BitSet();
+        public IntList order = new IntList();
+
+        public void use(int id) {
+            if (seen.get(id))
+                return;
+            seen.set(id);
+            order.add(id);
+        }
+    }
+
+    static class InternScope {
+        public FirstUses constIds = new FirstUses();
+        public FirstUses pipDelays = new FirstUses();
+    }
+
+    private static final ThreadLocal<InternScope> currentScope = new ThreadLocal<>();
+
+    // Compact, struct-of-arrays form of a tile type, built once its import is finished. Adjacency lists (bel ports,
+    // pips uphill and downhill of a wire, bel pins on a wire) are in CSR form: the entries for item i are at
+    // [start[i], start[i + 1]).
+    static class CompactTileType {
+        public int belCount, wireCount, pipCount;
+
+        public int[] belName, belType, belNativeType, belZ, belSite, belSiteVariant, belIsRouting;
+        public int[] belPortStart, belPortName, belPortType, belPortWire;
+
+        public int[] wireName, wireIntent, wireSite; // wireSite is -1 for tile wires
+        public int[] uphillStart, uphill, downhillStart, downhill;
+        public int[] belPinStart, belPinBel, belPinPort;
+
+        public int[] pipFrom, pipTo, pipTmgCls, pipType, pipBel, pipExtraData, pipSite, pipSiteVariant;
+        public boolean[] pipTimed; // false for pseudo pips, whose timing class is not an interned delay
+
+        public CompactTileType(ArrayList<NextpnrBel> bels, ArrayList<NextpnrWire> wires, ArrayList<NextpnrPip> pips) {
+            belCount = bels.size();
+            belName = new int[belCount];
+            belType = new int[belCount];
+            belNativeType = new int[belCount];
+            belZ = new int[belCount];
+            belSite = new int[belCount];
+            belSiteVariant = new int[belCount];
+            belIsRouting = new int[belCount];
+            belPortStart = new int[belCount + 1];
+            for (int i = 0; i < belCount; i++)
+                belPortStart[i + 1] = belPortStart[i] + bels.get(i).belports.size();
+            belPortName = new int[belPortStart[belCount]];
+            belPortType = new int[belPortStart[belCount]];
+            belPortWire = new int[belPortStart[belCount]];
+            for (int i = 0; i < belCount; i++) {
+                NextpnrBel b = bels.get(i);
+                belName[i] = b.name;
+                belType[i] = b.type;
+                belNativeType[i] = b.nativeType;
+                belZ[i] = b.z;
+                belSite[i] = b.site;
+                belSiteVariant[i] = b.siteVariant;
+                belIsRouting[i] = b.isRouting;
+                for (int j = 0; j < b.belports.size(); j++) {
+                    NextpnrBelWire bw = b.belports.get(j);
+                    belPortName[belPortStart[i] + j] = bw.name;
+                    belPortType[belPortStart[i] + j] = bw.port_type;
+                    belPortWire[belPortStart[i] + j] = bw.wire;
+                }
+            }
+
+            wireCount = wires.size();
+            wireName = new int[wireCount];
+            wireIntent = new int[wireCount];
+            wireSite = new int[wireCount];
+            uphillStart = new int[wireCount + 1];
+            downhillStart = new int[wireCount + 1];
+            belPinStart = new int[wireCount + 1];
+            for (int i = 0; i < wireCount; i++) {
+                NextpnrWire w = wires.get(i);
+                uphillStart[i + 1] = uphillStart[i] + w.pips_uh.size();
+                downhillStart[i + 1] = downhillStart[i] + w.pips_dh.size();
+                belPinStart[i + 1] = belPinStart[i] + w.belpins.size();
+            }
+            uphill = new int[uphillStart[wireCount]];
+            downhill = new int[downhillStart[wireCount]];
+            belPinBel = new int[belPinStart[wireCount]];
+            belPinPort = new int[belPinStart[wireCount]];
+            for (int i = 0; i < wireCount; i++) {
+                NextpnrWire w = wires.get(i);
+                wireName[i] = w.name;
+                wireIntent[i] = w.intent;
+                wireSite[i] = w.is_site ? w.site : -1;
+                for (int j = 0; j < w.pips_uh.size(); j++)
+                    uphill[uphillStart[i] + j] = w.pips_uh.get(j);
+                for (int j = 0; j < w.pips_dh.size(); j++)
+                    downhill[downhillStart[i] + j] = w.pips_dh.get(j);
+                for (int j = 0; j < w.belpins.size(); j++) {
+                    belPinBel[belPinStart[i] + j] = w.belpins.get(j).bel;
+                    belPinPort[belPinStart[i] + j] = w.belpins.get(j).port;
+                }
+            }
+
+            pipCount = pips.size();
+            pipFrom = new int[pipCount];
+            pipTo = new int[pipCount];
+            pipTmgCls = new int[pipCount];
+            pipType = new int[pipCount];
+            pipBel = new int[pipCount];
+            pipExtraData = new int[pipCount];
+            pipSite = new int[pipCount];
+            pipSiteVariant = new int[pipCount];
+            pipTimed = new boolean[pipCount];
+            for (int i = 0; i < pipCount; i++) {
+                NextpnrPip p = pips.get(i);
+                pipFrom[i] = p.from;
+                pipTo[i] = p.to;
+                pipTmgCls[i] = p.tmg_cls;
+                pipType[i] = p.type.ordinal();
+                pipBel[i] = p.bel;
+                pipExtraData[i] = p.extra_data;
+                pipSite[i] = p.site;
+                pipSiteVariant[i] = p.siteVariant;
+                pipTimed[i] = p.hasTimingClass;
+            }
+        }
+
+        public void remapIds(int[] constMap, int[] tmgMap) {
+            for (int i = 0; i < belCount; i++) {
+                belName[i] = constMap[belName[i]];
+                belType[i] = constMap[belType[i]];
+                belNativeType[i] = constMap[belNativeType[i]];
+            }
+            for (int i = 0; i < belPortName.length; i++)
+                belPortName[i] = constMap[belPortName[i]];
+            for (int i = 0; i < wireCount; i++) {
+                wireName[i] = constMap[wireName[i]];
+                wireIntent[i] = constMap[wireIntent[i]];
+            }
+            for (int i = 0; i < belPinPort.length; i++)
+                belPinPort[i] = constMap[belPinPort[i]];
+            for (int i = 0; i < pipCount; i++) {
+                if (pipTimed[i])
+                    pipTmgCls[i] = tmgMap[pipTmgCls[i]];
+                if (pipBel[i] != -1)
+                    pipBel[i] = constMap[pipBel[i]];
+                if (pipType[i] == NextpnrPipType.SITE_INTERNAL.ordinal())
+                    pipExtraData[i] = constMap[pipExtraData[i]]; // input pin name
+            }
+        }
+
+        public void write(DataOutputStream out) throws IOException {
+            for (int[] col : new int[][] {belName, belType, belNativeType, belZ, belSite, belSiteVariant, belIsRouting,
+                    belPortStart, belPortName, belPortType, belPortWire, wireName, wireIntent, wireSite, uphillStart,
+                    uphill, downhillStart, downhill, belPinStart, belPinBel, belPinPort, pipFrom, pipTo, pipTmgCls,
+                    pipType, pipBel, pipExtraData, pipSite, pipSiteVariant})
+                writeInts(out, col);
+            for (boolean b : pipTimed)
+                out.writeBoolean(b);
+        }
+
+        public CompactTileType(DataInputStream in) throws IOException {
+            belName = readInts(in);
+            belType = readInts(in);
+            belNativeType = readInts(in);
+            belZ = readInts(in);
+            belSite = readInts(in);
+            belSiteVariant = readInts(in);
+            belIsRouting = readInts(in);
+            belPortStart = readInts(in);
+            belPortName = readInts(in);
+            belPortType = readInts(in);
+            belPortWire = readInts(in);
+            wireName = readInts(in);
+            wireIntent = readInts(in);
+            wireSite = readInts(in);
+            uphillStart = readInts(in);
+            uphill = readInts(in);
+            downhillStart = readInts(in);
+            downhill = readInts(in);
+            belPinStart = readInts(in);
+            belPinBel = readInts(in);
+            belPinPort = readInts(in);
+            pipFrom = readInts(in);
+            pipTo = readInts(in);
+            pipTmgCls = readInts(in);
+            pipType = readInts(in);
+            pipBel = readInts(in);
+            pipExtraData = readInts(in);
+            pipSite = readInts(in);
+            pipSiteVariant = readInts(in);
+            belCount = belName.length;
+            wireCount = wireName.length;
+            pipCount = pipFrom.length;
+            pipTimed = new boolean[pipCount];
+            for (int i = 0; i < pipCount; i++)
+                pipTimed[i] = in.readBoolean();
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int v : values)
+            out.writeInt(v);
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = in.readInt();
+        return values;
+    }
+
+    class NextpnrTileType {
         public int index;
         public int type;
         public ArrayList<NextpnrBel> bels;
@@ -246,6 +477,18 @@ public class bbaexport {
         public int tile_wire_count = 0; // excluding site wires
         public int row_gnd_wire_index, row_vcc_wire_index, global_gnd_wire_index, global_vcc_wire_index;
         public HashMap<String, Integer> siteWiresToWireIndex;
+        public boolean[] pipWires; // tile wires that are the source or sink of any pip, used for node discovery
+
+        public CompactTileType data;
+
+        // Convert to the compact representation once import is done, releasing the per-object model
+        public void compact() {
+            data = new CompactTileType(bels, wires, pips);
+            bels = null;
+            wires = null;
+            pips = null;
+            siteWiresToWireIndex = null;
+        }
 
         private int siteWireToWire(Site s, String wire) {
             String key = s.getSiteTypeEnum().toString() + s.getSiteIndexInTile() + "/" + wire;
@@ -263,21 +506,26 @@ public class bbaexport {
             return nw.index;
         }
 
-        private NextpnrBel addBel(SiteInst s, int siteVariant, BEL b) {
+        private NextpnrBel addBel(Site s, SiteTemplate st, int siteVariant, BEL b, boolean excluded) {
             if (b.getBELClass() == BELClass.PORT)
                 return null;
-            int z = getBelZoverride(s.getTile(), s.getSite(), b);
+            int z = getBelZoverride(s.getTile(), s, b);
             if (z == -1)
                 return null;
+            // Bels left out by a profile still use up their z, so the rest keep the z of the full chipdb
+            if (excluded) {
+                belsInTile.put(s.getTile(), belsInTile.getOrDefault(s.getTile(), 0) + 1);
+                return null;
+            }
 
             String name = b.getName();
 
-            if (s.getPrimarySiteTypeEnum() == SiteTypeEnum.IOB33M || s.getPrimarySiteTypeEnum() == SiteTypeEnum.IOB33S) {
-                name = s.getSiteTypeEnum().toString() + "/" + name;
+            if (st.primarySiteType == SiteTypeEnum.IOB33M || st.primarySiteType == SiteTypeEnum.IOB33S) {
+                name = st.siteType.toString() + "/" + name;
             }
 
             NextpnrBel nb = new NextpnrBel(name,
-                    bels.size(), getBelTypeOverride(b.getBELType()), b.getBELType(), s.getSite().getSiteIndexInTile(), siteVariant, z,
+                    bels.size(), getBelTypeOverride(b.getBELType()), b.getBELType(), s.getSiteIndexInTile(), siteVariant, z,
                     (b.getBELClass() == BELClass.RBEL) ? 1 : 0);
             bels.add(nb);
             belsInTile.put(s.getTile(), belsInTile.getOrDefault(s.getTile(), 0) + 1);
@@ -286,7 +534,7 @@ public class bbaexport {
                 NextpnrBelWire nport = new NextpnrBelWire();
                 nport.port_type = bp.isBidir() ? 2 : (bp.isOutput() ? 1 : 0);
                 nport.name = makeConstId(bp.getName());
-                nport.wire = siteWireToWire(s.getSite(), bp.getSiteWireName());
+                nport.wire = siteWireToWire(s, bp.getSiteWireName());
                 nb.belports.add(nport);
 
                 wires.get(nport.wire).belpins.add(new NextpnrBelPin(nb.index, bp.getName()));
@@ -294,12 +542,12 @@ public class bbaexport {
                 // For HARD0 bels, create a pip from the tile-wide ground pseudo-wire to the HARDGND output
                 // for ease of constant routing in nextpnr
                 if (b.getBELType().equals("HARD0") && bp.getName().equals("0")) {
-                    NextpnrPip np = new NextpnrPip(pips.size(), row_gnd_wire_index, siteWireToWire(s.getSite(), bp.getSiteWireName()),
+                    NextpnrPip np = new NextpnrPip(pips.size(), row_gnd_wire_index, siteWireToWire(s, bp.getSiteWireName()),
                             0, NextpnrPipType.SITE_ENTRANCE);
                     wires.get(np.from).pips_dh.add(np.index);
                     wires.get(np.to).pips_uh.add(np.index);
                     np.bel = makeConstId(b.getName());
-                    np.site = s.getSite().getSiteIndexInTile();
+                    np.site = s.getSiteIndexInTile();
                     np.siteVariant = siteVariant;
                     pips.add(np);
                 }
@@ -308,7 +556,7 @@ public class bbaexport {
             return nb;
         }
 
-        private NextpnrPip addSitePIP(SiteInst s, int siteVariant, SitePIP sp) {
+        private NextpnrPip addSitePIP(Site s, int siteVariant, SitePIP sp) {
             if (sp.getBEL().getBELType().contains("LUT"))
                 return null; // Ignore LUT route-through pips for now
             if ((sp.getBELName().equals("ADI1MUX") && sp.getInputPinName().equals("BDI1")) ||
@@ -317,13 +565,13 @@ public class bbaexport {
                 return null;
             if (sp.getBELName().startsWith("TFBUSED"))
                 return null;
-            NextpnrPip np = new NextpnrPip(pips.size(), siteWireToWire(s.getSite(), sp.getInputPin().getSiteWireName()),
-                    siteWireToWire(s.getSite(), sp.getOutputPin().getSiteWireName()), 0, NextpnrPipType.SITE_INTERNAL);
+            NextpnrPip np = new NextpnrPip(pips.size(), siteWireToWire(s, sp.getInputPin().getSiteWireName()),
+                    siteWireToWire(s, sp.getOutputPin().getSiteWireName()), 0, NextpnrPipType.SITE_INTERNAL);
             wires.get(np.from).pips_dh.add(np.index);
             wires.get(np.to).pips_uh.add(np.index);
 
             np.bel = makeConstId(sp.getBELName());
-            np.site = s.getSite().getSiteIndexInTile();
+            np.site = s.getSiteIndexInTile();
             np.siteVariant = siteVariant;
             np.extra_data = makeConstId(sp.getInputPinName());
 
@@ -331,14 +579,14 @@ public class bbaexport {
             return np;
         }
 
-        private NextpnrPip addSiteIOPIP(Device d, Site s, SiteInst si, BELPin bp) {
+        private NextpnrPip addSiteIOPIP(Device d, Site s, SiteTemplate si, BELPin bp) {
             NextpnrPip np;
             String sitePinName = bp.getConnectedSitePinName();
             if (bp.isOutput() || bp.isBidir()) {
-                if (si.getSiteTypeEnum() == SiteTypeEnum.IPAD && sitePinName.equals("O"))
+                if (si.siteType == SiteTypeEnum.IPAD && sitePinName.equals("O"))
                     return null;
                 String sitePin = si.getPrimarySitePinName(sitePinName);
-                if (s.getSiteTypeEnum() == si.getSiteTypeEnum())
+                if (s.getSiteTypeEnum() == si.siteType)
                     sitePin = sitePinName;
                 //System.out.println(s.getName() + " " + sitePinName + " " + si.getPrimarySitePinName(sitePinName) + " " + sitePin + " " + si.getSiteTypeEnum() + " " + s.getTileWireNameFromPinName(sitePin));
                 if (s.getSiteTypeEnum() == SiteTypeEnum.SLICEL && sitePinName.equals("A_O")) {
@@ -382,7 +630,7 @@ public class bbaexport {
 
                 }
                 String sitePin = si.getPrimarySitePinName(sitePinName);
-                if (s.getSiteTypeEnum() == si.getSiteTypeEnum())
+                if (s.getSiteTypeEnum() == si.siteType)
                     sitePin = sitePinName;
                 //System.out.println(s.getName() + " " + sitePinName + " " + si.getPrimarySitePinName(sitePinName) + " " + sitePin + " " + si.getSiteTypeEnum() + " " + s.getTileWireNameFromPinName(sitePin));
                 np = new NextpnrPip(pips.size(), s.getTile().getWireIndex(s.getTileWireNameFromPinName(sitePin)), siteWireToWire(s, bp.getSiteWireName()),
@@ -395,20 +643,11 @@ public class bbaexport {
             return np;
         }
 
-        private NextpnrPip addPIP(TimingModel m, PIP p, boolean reverse) {
-
-
-            // Note this is a first-pass model. It assumes that all pips are buferred and all pips have the same
-            // delay regardless of location. It is to guide the nextpnr router rather than give sign-off quality
-            // STA.
-            TimingGroup tg = new TimingGroup(m);
-            tg.add(p.getStartNode(), p.getStartWire().getIntentCode());
-            tg.add(p);
-            tg.add(p.getEndNode(), p.getEndWire().getIntentCode());
-            var delay = m.calcDelay(tg);
-            int tmg_cls = get_pip_timing_class((int)(delay));
+        private NextpnrPip addPIP(int delay, PIP p, boolean reverse) {
+            int tmg_cls = get_pip_timing_class(delay);
 
             NextpnrPip np = new NextpnrPip(pips.size(), reverse ?  p.getEndWireIndex() : p.getStartWireIndex(), reverse ?  p.getStartWireIndex() : p.getEndWireIndex(), tmg_cls, NextpnrPipType.TILE_ROUTING);
+            np.hasTimingClass = true;
             wires.get(np.from).pips_dh.add(np.index);
             wires.get(np.to).pips_uh.add(np.index);
             pips.add(np);
@@ -428,7 +667,9 @@ public class bbaexport {
         }
 
         private void addPsuedoBel(Tile t, String name, String type, String pinName, int wire) {
-            NextpnrBel nb = new NextpnrBel(name, bels.size(), type, type, -1, 0, bels.size(), 0);
+            int z = belsInTile.getOrDefault(t, 0); // not bels.size(), which leaves out bels excluded by a profile
+            belsInTile.put(t, z + 1);
+            NextpnrBel nb = new NextpnrBel(name, bels.size(), type, type, -1, 0, z, 0);
             NextpnrBelWire port = new NextpnrBelWire();
             port.name = makeConstId(pinName);
             port.port_type = 1;
@@ -438,7 +679,7 @@ public class bbaexport {
             bels.add(nb);
         }
 
-        public void importTile(Device d, Design des, TimingModel tmg, Tile t) {
+        public void importTile(Device d, Design des, PipTiming tmg, Tile t) {
 
 
             type = makeConstId(t.getTileTypeEnum().name());
@@ -464,40 +705,46 @@ public class bbaexport {
             wires.add(new NextpnrWire("PSEUDO_VCC_WIRE_GLBL", global_vcc_wire_index, makeConstId("PSEUDO_VCC")));
 
             tile_wire_count = wires.size();
-            int autoidx = 0;
+            ExportProfile profile = session.profile;
             for (Site s : t.getSites()) {
+                boolean siteExcluded = profile.excludesSiteType(s.getSiteTypeEnum());
                 HashSet<BELPin> sitePins = new HashSet<>();
                 ArrayList<SiteTypeEnum> variants = new ArrayList<>();
                 variants.add(s.getSiteTypeEnum());
                 variants.addAll(Arrays.asList(s.getAlternateSiteTypeEnums()));
 
                 for (int variant = 0; variant < variants.size(); variant++) {
-
-                    SiteInst si = new SiteInst(t.getName() + "_" + (autoidx++), des, variants.get(variant), s);
-
-                    HashSet<SitePIP> sitePips = new HashSet<>();
-                    for (BEL b : si.getBELs()) {
-                        addBel(si, variant, b);
+                    // Left out variants keep their index, as the variant of a bel or pip is that of the site. Their bels
+                    // are still walked so that they take up their z
+                    boolean excluded = siteExcluded || profile.excludesSiteType(variants.get(variant));
+                    SiteTemplate st = session.getSiteTemplate(des, s, variants.get(variant));
+                    for (BEL b : st.bels) {
+                        addBel(s, st, variant, b, excluded || profile.excludesBelType(b.getBELType()));
+                        if (excluded)
+                            continue;
                         for (BELPin bp : b.getPins()) {
                             String sitePin = bp.getConnectedSitePinName();
                             if (sitePin != null && !sitePins.contains(bp)) {
                                 sitePins.add(bp);
-                                addSiteIOPIP(d, s, si, bp);
+                                addSiteIOPIP(d, s, st, bp);
                             }
-                            sitePips.addAll(bp.getSitePIPs());
                         }
-
                     }
-                    for (SitePIP sp : sitePips)
-                        addSitePIP(si, variant, sp);
-
-                    si.unPlace();
+                    for (SitePIP sp : st.sitePips)
+                        if (!excluded && !profile.excludesBelType(sp.getBEL().getBELType()))
+                            addSitePIP(s, variant, sp);
                 }
             }
             TileTypeEnum tt = t.getTileTypeEnum();
             boolean isLogic = (tt == TileTypeEnum.CLEM || tt == TileTypeEnum.CLEM_R || tt == TileTypeEnum.CLEL_L || tt == TileTypeEnum.CLEL_R);
             boolean isxc7Logic = (tt == TileTypeEnum.CLBLL_L || tt == TileTypeEnum.CLBLL_R || tt == TileTypeEnum.CLBLM_L || tt == TileTypeEnum.CLBLM_R);
-            for (PIP p : t.getPIPs()) {
+            pipWires = new boolean[t.getWireCount()];
+            List<PIP> tilePips = t.getPIPs();
+            int[] pipDelays = tmg.getDelays(tilePips);
+            for (int i = 0; i < tilePips.size(); i++) {
+                PIP p = tilePips.get(i);
+                pipWires[p.getStartWireIndex()] = true;
+                pipWires[p.getEndWireIndex()] = true;
                 if (p.isRouteThru() && p.getStartWireName().endsWith("_CE_INT"))
                     continue; // these route through pips seem to cause antenna issues
                 if (p.isRouteThru() && isxc7Logic)
@@ -506,7 +753,7 @@ public class bbaexport {
                     continue;
                 if (xc7_flag && p.getStartWireName().startsWith("CLK_BUFG_R_FBG_OUT"))
                     continue;
-                NextpnrPip np = addPIP(tmg, p, false);
+                NextpnrPip np = addPIP(pipDelays[i], p, false);
                 if (p.isRouteThru() && isLogic) {
                     np.type = NextpnrPipType.LUT_ROUTETHRU;
                     // extra data: eigth[3:0]; from[3:0]; to[3:0]
@@ -517,7 +764,7 @@ public class bbaexport {
                     np.extra_data = p.isRouteThru() ? 1 : 0;
                 }
                 if (p.isBidirectional())
-                    addPIP(tmg, p, true);
+                    addPIP(pipDelays[i], p, true);
             }
             // Add pseudo-bels driving Vcc and GND
             addPsuedoBel(t, "PSEUDO_GND_BEL", "PSEUDO_GND", "Y", global_gnd_wire_index);
@@ -526,6 +773,39 @@ public class bbaexport {
             addPseudoPIP(global_gnd_wire_index, row_gnd_wire_index);
             addPseudoPIP(global_vcc_wire_index, row_vcc_wire_index);
         }
+
+        // Apply the renumbering of constids and pip timing classes allocated while importing in parallel
+        public void remapIds(int[] constMap, int[] tmgMap) {
+            type = constMap[type];
+            data.remapIds(constMap, tmgMap);
+        }
+
+        // Everything needed after import, with constids and timing classes as they currently stand
+        public void writeCache(DataOutputStream out) throws IOException {
+            out.writeInt(type);
+            out.writeInt(tile_wire_count);
+            out.writeInt(row_gnd_wire_index);
+            out.writeInt(row_vcc_wire_index);
+            out.writeInt(global_gnd_wire_index);
+            out.writeInt(global_vcc_wire_index);
+            out.writeInt(pipWires.length);
+            for (boolean b : pipWires)
+                out.writeBoolean(b);
+            data.write(out);
+        }
+
+        public void readCache(DataInputStream in) throws IOException {
+            type = in.readInt();
+            tile_wire_count = in.readInt();
+            row_gnd_wire_index = in.readInt();
+            row_vcc_wire_index = in.readInt();
+            global_gnd_wire_index = in.readInt();
+            global_vcc_wire_index = in.readInt();
+            pipWires = new boolean[in.readInt()];
+            for (int i = 0; i < pipWires.length; i++)
+                pipWires[i] = in.readBoolean();
+            data = new CompactTileType(in);
+        }
     }
 
     static class NextpnrSiteInst {
@@ -537,15 +817,18 @@ public class bbaexport {
     }
     static class NextpnrTileInst {
         public int index;
-        public String name;
         public int type;
 
-        public Integer[] tilewire_to_node;
+        public long wire_base; // offset of the tile's wire to node map in wireToNode
+        public int wire_count;
+        public String wire_to_node_label;
 
+        // null in bounded-memory mode, where they are only produced when written out
+        public String name;
         public ArrayList<NextpnrSiteInst> sites;
     }
 
-    private static String getBelTypeOverride(String type) {
+    private String getBelTypeOverride(String type) {
         if (type.endsWith("6LUT") || type.equals("LUT_OR_MEM6") || type.equals("LUT6"))
             return "SLICE_LUTX";
         if (type.endsWith("5LUT") || type.equals("LUT_OR_MEM5") || type.equals("LUT5"))
@@ -595,17 +878,22 @@ public class bbaexport {
     }
 
 
-    private static HashMap<Tile, Integer> belsInTile = new HashMap<>();
+    private final ConcurrentHashMap<Tile, Integer> belsInTile = new ConcurrentHashMap<>();
 
-    private static int makeConstId(String s) {
-        if (knownConstIds.containsKey(s))
-            return knownConstIds.get(s);
-        knownConstIds.put(s, constIds.size());
-        constIds.add(s);
-        return constIds.size() - 1;
+    // Number of constids in the written constid table, after which no new ones may be made
+    private volatile int constIdLimit = Integer.MAX_VALUE;
+
+    int makeConstId(String s) {
+        int id = constIds.intern(s);
+        if (id >= constIdLimit)
+            throw new RuntimeException("constid " + s + " made after the constid table was written");
+        InternScope scope = currentScope.get();
+        if (scope != null)
+            scope.constIds.use(id);
+        return id;
     }
 
-    private static int getBelZoverride(Tile t, Site s, BEL b) {
+    private int getBelZoverride(Tile t, Site s, BEL b) {
 
         if (t.getTileTypeEnum() == TileTypeEnum.BRAM) {
             switch (b.getBELType()) {
@@ -758,34 +1046,1291 @@ public class bbaexport {
 
     }
 
-    public static ArrayList<NextpnrTileType> tileTypes = new ArrayList<>();
-    public static HashMap<TileTypeEnum, Integer> tileTypeIndices = new HashMap<>();
+    // Nodes discovered in a band of rows, in the order they are to be numbered
+    static class NodeBand {
+        public int row0, row1;
+        public IntList nodeIntent = new IntList();
+        public IntList nodeWireStart = new IntList(); // offset of the first wire of each node in wires
+        public IntList wires = new IntList(); // (flat tile index, wire index) pairs
+        public IntList constIds; // first uses of constids, for checkpoints
+
+        public NodeBand(int row0, int row1) {
+            this.row0 = row0;
+            this.row1 = row1;
+            nodeWireStart.add(0);
+        }
+
+        public void addWire(int tileIndex, int wireIndex) {
+            wires.add(tileIndex);
+            wires.add(wireIndex);
+        }
+
+        public void endNode(int intent) {
+            nodeIntent.add(intent);
+            nodeWireStart.add(wires.size());
+        }
+    }
+
+    // Hash key for the contents of an int array
+    static final class IntArrayKey {
+        final int[] data;
+        final int hash;
+
+        IntArrayKey(int[] data) {
+            this.data = data;
+            this.hash = Arrays.hashCode(data);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IntArrayKey && Arrays.equals(data, ((IntArrayKey)o).data);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // Writes the tile wires of each node as they are discovered. By default every node gets its own list of
+    // (tile, wire) pairs. With node templates, nodes with the same intent and the same tile wires relative to their
+    // first (anchor) tile share one list of (dx, dy, wire), and a node is just a template index plus anchor tile.
+    static class NodeWriter {
+        private final BBAWriter bba;
+        private final int width;
+        public final boolean templates;
+        public boolean keepAnchors = false; // of every node, for anchor(), even without templates
+        public boolean bounds = false; // write the span of the tiles of each node
+
+        // Tile wire count and intent of each node, or of each template
+        private final IntColumn wireCount, intent;
+        // Template and anchor tile of each node, with templates (or the anchors alone with keepAnchors)
+        private final IntColumn nodeTemplate, nodeAnchor;
+        // With bounds, x0 | x1 << 16 and y0 | y1 << 16 of each node
+        private final IntColumn nodeBounds;
+        private final HashMap<IntArrayKey, Integer> templateIds = new HashMap<>();
+
+        // With a spill directory, the per-node columns are kept in memory-mapped files
+        public NodeWriter(BBAWriter bba, int width, boolean templates, File spillDir) throws IOException {
+            this.bba = bba;
+            this.width = width;
+            this.templates = templates;
+            wireCount = new IntColumn(templates ? null : spillDir);
+            intent = new IntColumn(templates ? null : spillDir);
+            nodeTemplate = new IntColumn(spillDir);
+            nodeAnchor = new IntColumn(spillDir);
+            nodeBounds = new IntColumn(spillDir);
+        }
+
+        public int count() {
+            return (int)(templates ? nodeTemplate.size() : wireCount.size());
+        }
+
+        // tileWires holds (tile index, wire index) pairs; returns the index of the new node
+        public int add(IntList tileWires, int nodeIntent) throws IOException {
+            int node = count();
+            if (bounds) {
+                int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = -1, y1 = -1;
+                for (int j = 0; j < tileWires.size(); j += 2) {
+                    int x = tileWires.get(j) % width, y = tileWires.get(j) / width;
+                    x0 = Math.min(x0, x);
+                    y0 = Math.min(y0, y);
+                    x1 = Math.max(x1, x);
+                    y1 = Math.max(y1, y);
+                }
+                nodeBounds.add(x0 | x1 << 16);
+                nodeBounds.add(y0 | y1 << 16);
+            }
+            if (!templates) {
+                bba.label("n" + node + "_tw");
+                for (int j = 0; j < tileWires.size(); j++)
+                    bba.u32(tileWires.get(j)); // tile inst index, tile wire index
+                wireCount.add(tileWires.size() / 2);
+                intent.add(nodeIntent);
+                if (keepAnchors)
+                    nodeAnchor.add(tileWires.get(0));
+                return node;
+            }
+            int anchor = tileWires.get(0);
+            int[] shape = new int[1 + 3 * (tileWires.size() / 2)];
+            shape[0] = nodeIntent;
+            for (int j = 0, k = 1; j < tileWires.size(); j += 2, k += 3) {
+                shape[k] = tileWires.get(j) % width - anchor % width;
+                shape[k + 1] = tileWires.get(j) / width - anchor / width;
+                shape[k + 2] = tileWires.get(j + 1);
+            }
+            IntArrayKey key = new IntArrayKey(shape); // intent, then (dx, dy, wire) for each tile wire
+            Integer tmpl = templateIds.get(key);
+            if (tmpl == null) {
+                tmpl = (int)wireCount.size();
+                templateIds.put(key, tmpl);
+                bba.label("nt" + tmpl + "_tw");
+                for (int k = 1; k < shape.length; k += 3) {
+                    bba.u16(shape[k]); // dx
+                    bba.u16(shape[k + 1]); // dy
+                    bba.u32(shape[k + 2]); // tile wire index
+                }
+                wireCount.add(tileWires.size() / 2);
+                intent.add(nodeIntent);
+            }
+            nodeTemplate.add(tmpl);
+            nodeAnchor.add(anchor);
+            return node;
+        }
+
+        // Tile inst index of the first tile wire of a node
+        public int anchor(int node) {
+            return nodeAnchor.get(node);
+        }
+
+        public int intent(int node) {
+            return intent.get(templates ? nodeTemplate.get(node) : node);
+        }
+
+        public int templateCount() {
+            return templates ? (int)wireCount.size() : 0;
+        }
+
+        public void writeTables() throws IOException {
+            if (templates) {
+                bba.label("node_templates");
+                for (long i = 0; i < wireCount.size(); i++) {
+                    bba.u32(wireCount.get(i)); //number of tilewires in template
+                    bba.u32(intent.get(i)); //node intent constid
+                    bba.ref("nt" + i + "_tw"); //ref to list of relative tilewires
+                }
+                bba.label("node_insts");
+                for (long i = 0; i < nodeTemplate.size(); i++) {
+                    bba.u32(nodeTemplate.get(i)); //template index
+                    bba.u32(nodeAnchor.get(i)); //anchor tile inst index
+                }
+                bba.label("nodes"); // unused with templates
+            } else {
+                bba.label("nodes");
+                for (long i = 0; i < wireCount.size(); i++) {
+                    bba.u32(wireCount.get(i)); //number of tilewires in node
+                    bba.u32(intent.get(i)); //node intent constid
+                    bba.ref("n" + i + "_tw"); //ref to list of tilewires
+                }
+            }
+            if (bounds) {
+                bba.label("node_bounds");
+                for (long i = 0; i < nodeBounds.size(); i += 2) {
+                    bba.u16(nodeBounds.get(i) & 0xFFFF); // x0
+                    bba.u16(nodeBounds.get(i + 1) & 0xFFFF); // y0
+                    bba.u16(nodeBounds.get(i) >>> 16); // x1
+                    bba.u16(nodeBounds.get(i + 1) >>> 16); // y1
+                }
+            }
+        }
+
+        public void close() throws IOException {
+            wireCount.close();
+            intent.close();
+            nodeTemplate.close();
+            nodeAnchor.close();
+            nodeBounds.close();
+        }
+    }
+
+    // True if the tile is exported, being in the region and not of a tile type left out by the profile
+    private boolean exported(Tile t) {
+        return region.contains(t) && !excludedTileTypes.contains(t.getTileTypeEnum());
+    }
+
+    // The wires of a node that are in exported tiles
+    private Wire[] clip(Wire[] nodeWires) {
+        int inside = 0;
+        for (Wire w : nodeWires)
+            if (exported(w.getTile()))
+                ++inside;
+        if (inside == nodeWires.length)
+            return nodeWires;
+        Wire[] clipped = new Wire[inside];
+        int i = 0;
+        for (Wire w : nodeWires)
+            if (exported(w.getTile()))
+                clipped[i++] = w;
+        return clipped;
+    }
+
+    // True if an exported tile in a row before row0 has a pip on one of the node's wires, so it was discovered by an
+    // earlier band
+    private boolean discoveredBefore(Wire[] nodeWires, int row0) {
+        for (Wire w : nodeWires) {
+            Tile wt = w.getTile();
+            if (wt.getRow() < row0 && exported(wt)
+                    && tileTypes.get(tileTypeIndices.get(wt.getTileTypeEnum())).pipWires[w.getWireIndex()])
+                return true;
+        }
+        return false;
+    }
+
+    // Rectangle of tiles to export, inclusive. Tiles outside it keep their place in the grid, so that coordinates and
+    // tile indices are those of the full device, but have an empty tile type and no sites; nodes are clipped to the
+    // tiles inside.
+    static class Region {
+        public final int col0, row0, col1, row1;
+
+        public Region(int col0, int row0, int col1, int row1) {
+            this.col0 = col0;
+            this.row0 = row0;
+            this.col1 = col1;
+            this.row1 = row1;
+        }
+
+        public static Region wholeDevice(Device d) {
+            return new Region(0, 0, d.getColumns() - 1, d.getRows() - 1);
+        }
+
+        // Either a tile range "col0,row0,col1,row1", or a range of clock regions "X0Y0:X1Y1" (or a single one)
+        public static Region parse(Device d, String spec) {
+            int c0, r0, c1, r1;
+            String[] corners = spec.split(":");
+            if (spec.matches("\\d+,\\d+,\\d+,\\d+")) {
+                String[] v = spec.split(",");
+                c0 = Integer.parseInt(v[0]);
+                r0 = Integer.parseInt(v[1]);
+                c1 = Integer.parseInt(v[2]);
+                r1 = Integer.parseInt(v[3]);
+            } else if (corners.length <= 2) {
+                ClockRegion a = d.getClockRegion(corners[0]), b = d.getClockRegion(corners[corners.length - 1]);
+                if (a == null || b == null)
+                    throw new RuntimeException("unknown clock region in region " + spec);
+                c0 = Math.min(a.getUpperLeft().getColumn(), b.getUpperLeft().getColumn());
+                r0 = Math.min(a.getUpperLeft().getRow(), b.getUpperLeft().getRow());
+                c1 = Math.max(a.getLowerRight().getColumn(), b.getLowerRight().getColumn());
+                r1 = Math.max(a.getLowerRight().getRow(), b.getLowerRight().getRow());
+            } else {
+                throw new RuntimeException("invalid region " + spec);
+            }
+            c0 = Math.max(0, Math.min(c0, c1));
+            r0 = Math.max(0, Math.min(r0, r1));
+            c1 = Math.min(d.getColumns() - 1, Math.max(c0, c1));
+            r1 = Math.min(d.getRows() - 1, Math.max(r0, r1));
+            if (c0 > c1 || r0 > r1)
+                throw new RuntimeException("region " + spec + " is outside the device");
+            return new Region(c0, r0, c1, r1);
+        }
+
+        public boolean contains(Tile t) {
+            return t.getRow() >= row0 && t.getRow() <= row1 && t.getColumn() >= col0 && t.getColumn() <= col1;
+        }
+
+        public boolean isWholeDevice(Device d) {
+            return col0 == 0 && row0 == 0 && col1 == d.getColumns() - 1 && row1 == d.getRows() - 1;
+        }
+
+        @Override
+        public String toString() {
+            return col0 + "," + row0 + "," + col1 + "," + row1;
+        }
+    }
+
+    // Tile types, site types and bel types left out of an export, for a smaller chipdb when designs do not use them.
+    // Tiles of a left out type are emptied like tiles outside the region, and nodes are clipped to the other tiles.
+    // Left out sites, site variants and bels lose their site wires and pips, but the tile wires of their pins and all
+    // tile pips stay, so the routing graph around them is unchanged. A profile is either a built-in one or a file of
+    // "tile-type NAME", "site-type NAME" and "bel-type NAME" lines, where a NAME ending in '*' matches by prefix.
+    static class ExportProfile {
+        public static final ExportProfile NONE = new ExportProfile("full", new ArrayList<>());
+
+        // Hard blocks that designs only using the fabric (CLBs, block RAM, DSPs, clocking and I/O) do not need
+        private static final String[] FABRIC_ONLY = {
+                "tile-type PSS*", "tile-type GT*", "tile-type PCIE*", "tile-type CMAC*", "tile-type ILKN*",
+                "tile-type ILMAC*", "tile-type HBM*", "tile-type RFADC*", "tile-type RFDAC*", "tile-type FE_*",
+                "site-type PS7", "site-type PS8", "site-type GT*", "site-type PCIE*", "site-type SYSMONE*",
+                "site-type XADC", "site-type CMAC*", "site-type ILKN*", "site-type HBM*", "site-type HSADC",
+                "site-type HSDAC", "site-type RFADC", "site-type RFDAC", "site-type FE",
+        };
+
+        public final String name;
+        private final List<String> lines;
+        private final ArrayList<String> tileTypes = new ArrayList<>(), siteTypes = new ArrayList<>(),
+                belTypes = new ArrayList<>();
+
+        private ExportProfile(String name, List<String> lines) {
+            this.name = name;
+            this.lines = lines;
+            for (String line : lines) {
+                String l = line.trim();
+                if (l.isEmpty() || l.startsWith("#"))
+                    continue;
+                String[] f = l.split("\\s+");
+                if (f.length != 2)
+                    throw new RuntimeException("invalid line in export profile " + name + ": " + line);
+                if (f[0].equals("tile-type"))
+                    tileTypes.add(f[1]);
+                else if (f[0].equals("site-type"))
+                    siteTypes.add(f[1]);
+                else if (f[0].equals("bel-type"))
+                    belTypes.add(f[1]);
+                else
+                    throw new RuntimeException("invalid line in export profile " + name + ": " + line);
+            }
+        }
+
+        public static ExportProfile load(String spec) {
+            if (spec.equals(NONE.name))
+                return NONE;
+            if (spec.equals("fabric-only"))
+                return new ExportProfile(spec, Arrays.asList(FABRIC_ONLY));
+            File f = new File(spec);
+            if (!f.isFile())
+                throw new RuntimeException("unknown export profile " + spec);
+            try {
+                return new ExportProfile(f.getName().replaceAll("\\.[^.]*$", ""), Files.readAllLines(f.toPath()));
+            } catch (IOException e) {
+                throw new RuntimeException("failed to read export profile " + f, e);
+            }
+        }
+
+        public boolean isEmpty() {
+            return tileTypes.isEmpty() && siteTypes.isEmpty() && belTypes.isEmpty();
+        }
+
+        // Identifies the profile contents, for the tile type cache and checkpoints
+        public String id() {
+            return name.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + Integer.toHexString(String.join("\n", lines).hashCode());
+        }
+
+        private static boolean matches(List<String> patterns, String name) {
+            for (String p : patterns)
+                if (p.endsWith("*") ? name.startsWith(p.substring(0, p.length() - 1)) : name.equals(p))
+                    return true;
+            return false;
+        }
+
+        public boolean excludesTileType(TileTypeEnum t) {
+            return !tileTypes.isEmpty() && matches(tileTypes, t.name());
+        }
+
+        public boolean excludesSiteType(SiteTypeEnum t) {
+            return !siteTypes.isEmpty() && matches(siteTypes, t.name());
+        }
+
+        public boolean excludesBelType(String t) {
+            return !belTypes.isEmpty() && matches(belTypes, t);
+        }
+    }
+
+    private static void addNodeWires(Device d, IntList dst, Wire[] nodeWires) {
+        for (Wire w : nodeWires) {
+            dst.add(w.getTile().getRow() * d.getColumns() + w.getTile().getColumn());
+            dst.add(w.getWireIndex());
+        }
+    }
+
+    private NodeBand discoverNodes(Device d, HashSet<TileTypeEnum> intTileTypes, int row0, int row1) {
+        NodeBand band = new NodeBand(row0, row1);
+        LongHashSet seenNodes = new LongHashSet();
+        // Wires of the nodes tied to ground or Vcc in the current row, as (flat tile index, wire index) pairs
+        IntList gndWires = new IntList(), vccWires = new IntList();
+        for (int row = row0; row < row1; row++) {
+            gndWires.clear();
+            vccWires.clear();
+            for (int col = region.col0; col <= region.col1; col++) {
+                Tile t = d.getTile(row, col);
+                if (!exported(t))
+                    continue;
+                for (PIP p : t.getPIPs()) {
+                    Node[] nodes = {p.getStartNode(), p.getEndNode()};
+                    // FIXME: best way to discover nodes in tile?
+                    for (Node n : nodes) {
+                        long flatIndex = (long)(n.getTile().getRow() * d.getColumns() + n.getTile().getColumn()) << 32 | n.getWire();
+                        if (!seenNodes.add(flatIndex))
+                            continue;
+                        Wire[] nodeWires = n.getAllWiresInNode();
+                        if (discoveredBefore(nodeWires, row0))
+                            continue;
+                        nodeWires = clip(nodeWires);
+
+                        String wn = n.getWireName();
+                        //System.out.println(t.getName() + " " + n.getWireName());
+                        if ((t.getTileTypeEnum() != TileTypeEnum.BRAM_INT_INTERFACE_L && t.getTileTypeEnum() != TileTypeEnum.BRAM_INT_INTERFACE_R
+                             && t.getTileTypeEnum() != TileTypeEnum.RCLK_INT_L && t.getTileTypeEnum() != TileTypeEnum.RCLK_INT_R) &&
+                                n.isTiedToGnd()) {
+                            addNodeWires(d, gndWires, nodeWires);
+                            continue;
+                        }
+                        if ((t.getTileTypeEnum() != TileTypeEnum.BRAM_INT_INTERFACE_L && t.getTileTypeEnum() != TileTypeEnum.BRAM_INT_INTERFACE_R) && n.isTiedToVcc()) {
+                            addNodeWires(d, vccWires, nodeWires);
+                            continue;
+                        }
+                        if (nodeWires.length > 1) {
+                            // Add interconnect tiles first for better delay estimates in nextpnr
+                            for (int j = 0; j < 2; j++) {
+                                for (Wire w : nodeWires) {
+                                    if (intTileTypes.contains(w.getTile().getTileTypeEnum()) != (j == 0))
+                                        continue;
+                                    band.addWire(w.getTile().getRow() * d.getColumns() + w.getTile().getColumn(), w.getWireIndex());
+                                }
+                            }
+                            Wire nw = new Wire(n.getTile(), n.getWire());
+                            band.endNode(makeConstId(nw.getIntentCode().toString()));
+                        }
+                    }
+                }
+            }
+            // Connect up row and column ground nodes
+            for (int i = 0; i < 2; i++) {
+                IntList tiedWires = (i == 1) ? vccWires : gndWires;
+                for (int j = 0; j < tiedWires.size(); j += 2)
+                    band.addWire(tiedWires.get(j), tiedWires.get(j + 1));
+
+                for (int col = region.col0; col <= region.col1; col++) {
+                    Tile t = d.getTile(row, col);
+                    if (!exported(t))
+                        continue;
+                    NextpnrTileType tt = tileTypes.get(tileTypeIndices.get(t.getTileTypeEnum()));
+                    band.addWire(t.getRow() * d.getColumns() + t.getColumn(), (i == 1) ? tt.row_vcc_wire_index : tt.row_gnd_wire_index);
+                }
+                // A row with every tile left out has no row nodes
+                if (band.wires.size() > band.nodeWireStart.get(band.nodeWireStart.size() - 1))
+                    band.endNode(makeConstId(i == 1 ? "PSEUDO_VCC" : "PSEUDO_GND"));
+            }
+        }
+        return band;
+    }
+
+    // Store of imported tile types, so that parts sharing tile types do not repeat the SiteInst probing and pip timing.
+    // Entries are kept in memory when exporting several parts, and on disk with --cache-dir. Each holds a compact tile
+    // type with its constids and timing classes replaced by indices into string and delay tables in first-use order,
+    // so loading it interns those in the same order an import would have (see saveTileType and loadTileType).
+    static class TileTypeCache {
+        public static final int MAGIC = 0x4e505454;
+        public static final int FORMAT_VERSION = 1;
+
+        private final File dir; // null if not kept on disk
+        private final ConcurrentHashMap<String, byte[]> entries; // null if not kept in memory
+
+        public TileTypeCache(File root, boolean inMemory) {
+            if (root != null) {
+                dir = new File(root, rapidWrightVersion());
+                if (!dir.isDirectory() && !dir.mkdirs())
+                    throw new RuntimeException("failed to create tile type cache directory " + dir);
+            } else {
+                dir = null;
+            }
+            entries = inMemory ? new ConcurrentHashMap<>() : null;
+        }
+
+        static String rapidWrightVersion() {
+            java.lang.Package p = Device.class.getPackage();
+            String version = (p != null) ? p.getImplementationVersion() : null;
+            if (version == null) {
+                // Unversioned build, identify it by the jar it was loaded from
+                try {
+                    File jar = new File(Device.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+                    version = jar.getName() + "-" + jar.length() + "-" + jar.lastModified();
+                } catch (Exception e) {
+                    version = "unknown";
+                }
+            }
+            return "rapidwright-" + version.replaceAll("[^A-Za-z0-9._-]", "_");
+        }
+
+        public static String key(TileTypeEnum t, boolean xc7, ExportProfile profile) {
+            return t.name() + (xc7 ? ".xc7" : ".us") + (profile.isEmpty() ? "" : "." + profile.id());
+        }
+
+        public byte[] get(String key) {
+            byte[] entry = (entries != null) ? entries.get(key) : null;
+            if (entry != null || dir == null)
+                return entry;
+            File f = new File(dir, key + ".tt");
+            if (!f.isFile())
+                return null;
+            try {
+                entry = Files.readAllBytes(f.toPath());
+            } catch (IOException e) {
+                System.err.println("Ignoring unreadable tile type cache entry " + f + ": " + e);
+                return null;
+            }
+            if (entries != null)
+                entries.put(key, entry);
+            return entry;
+        }
+
+        // Failures to write to disk only cost the cache entry
+        public void put(String key, byte[] entry) {
+            if (entries != null)
+                entries.put(key, entry);
+            if (dir == null)
+                return;
+            File f = new File(dir, key + ".tt");
+            File tmp = new File(dir, f.getName() + "." + Thread.currentThread().getId() + ".tmp");
+            try {
+                Files.write(tmp.toPath(), entry);
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Failed to write tile type cache entry " + f + ": " + e);
+                tmp.delete();
+            }
+        }
+    }
+
+    // Serializes a freshly imported and compacted tile type for the cache
+    private byte[] saveTileType(NextpnrTileType tt, InternScope scope) throws IOException {
+        int[] constOrder = scope.constIds.order.toArray(), tmgOrder = scope.pipDelays.order.toArray();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+        tt.remapIds(toLocal(constOrder), toLocal(tmgOrder));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(TileTypeCache.MAGIC);
+            out.writeInt(TileTypeCache.FORMAT_VERSION);
+            out.writeInt(constOrder.length);
+            for (int id : constOrder)
+                out.writeUTF(constIds.get(id));
+            out.writeInt(tmgOrder.length);
+            for (int id : tmgOrder)
+                out.writeInt(pipDelays.get(id));
+            tt.writeCache(out);
+        } finally {
+            tt.remapIds(constOrder, tmgOrder);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int[] toLocal(int[] order) {
+        int max = -1;
+        for (int id : order)
+            max = Math.max(max, id);
+        int[] map = new int[max + 1];
+        for (int i = 0; i < order.length; i++)
+            map[order[i]] = i;
+        return map;
+    }
+
+    // Must be called in the import scope of the tile type. Returns false, without interning anything, if the entry
+    // is not usable.
+    private boolean loadTileType(NextpnrTileType tt, byte[] entry) {
+        String[] strings;
+        int[] delays;
+        NextpnrTileType cached = new NextpnrTileType();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry))) {
+            if (in.readInt() != TileTypeCache.MAGIC || in.readInt() != TileTypeCache.FORMAT_VERSION)
+                return false;
+            strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++)
+                strings[i] = in.readUTF();
+            delays = new int[in.readInt()];
+            for (int i = 0; i < delays.length; i++)
+                delays[i] = in.readInt();
+            cached.readCache(in);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable tile type cache entry: " + e);
+            return false;
+        }
+        int[] constMap = new int[strings.length];
+        for (int i = 0; i < strings.length; i++)
+            constMap[i] = makeConstId(strings[i]);
+        int[] tmgMap = new int[delays.length];
+        for (int i = 0; i < delays.length; i++)
+            tmgMap[i] = get_pip_timing_class(delays[i]);
+        cached.remapIds(constMap, tmgMap);
+        tt.type = cached.type;
+        tt.tile_wire_count = cached.tile_wire_count;
+        tt.row_gnd_wire_index = cached.row_gnd_wire_index;
+        tt.row_vcc_wire_index = cached.row_vcc_wire_index;
+        tt.global_gnd_wire_index = cached.global_gnd_wire_index;
+        tt.global_vcc_wire_index = cached.global_vcc_wire_index;
+        tt.pipWires = cached.pipWires;
+        tt.data = cached.data;
+        return true;
+    }
+
+    // Checkpoint of the node discovery of one part: each band is saved as it completes, so that an interrupted export
+    // run again with --resume only discovers the remaining bands. (Finished tile types are checkpointed by the tile
+    // type cache, which checkpointing keeps on disk.) Bands hold their constids as strings in the order discovery
+    // first used them, so loading one interns them just as discovering it again would.
+    static class NodeCheckpoint {
+        public static final int MAGIC = 0x4e50424e;
+        public static final int FORMAT_VERSION = 1;
+
+        private final File dir;
+
+        public NodeCheckpoint(File root, String part, boolean resume) {
+            dir = new File(root, part);
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new RuntimeException("failed to create checkpoint directory " + dir);
+            if (!resume) {
+                File[] old = dir.listFiles((f, name) -> name.endsWith(".band"));
+                if (old != null)
+                    for (File f : old)
+                        f.delete();
+            }
+        }
+
+        private File file(int row0, int row1) {
+            return new File(dir, "rows-" + row0 + "-" + row1 + ".band");
+        }
+
+        public byte[] get(int row0, int row1) {
+            File f = file(row0, row1);
+            if (!f.isFile())
+                return null;
+            try {
+                return Files.readAllBytes(f.toPath());
+            } catch (IOException e) {
+                System.err.println("Ignoring unreadable checkpoint " + f + ": " + e);
+                return null;
+            }
+        }
+
+        // A failure to write only costs the band being discovered again on resume
+        public void put(int row0, int row1, byte[] band) {
+            File f = file(row0, row1);
+            File tmp = new File(dir, f.getName() + ".tmp");
+            try {
+                Files.write(tmp.toPath(), band);
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Failed to write checkpoint " + f + ": " + e);
+                tmp.delete();
+            }
+        }
+    }
+
+    private static void writeIntList(DataOutputStream out, IntList list) throws IOException {
+        out.writeInt(list.size());
+        for (int i = 0; i < list.size(); i++)
+            out.writeInt(list.get(i));
+    }
+
+    private static IntList readIntList(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        IntList list = new IntList(n);
+        for (int i = 0; i < n; i++)
+            list.add(in.readInt());
+        return list;
+    }
+
+    private byte[] saveNodeBand(NodeBand band) throws IOException {
+        int[] constOrder = band.constIds.toArray();
+        int[] toLocal = toLocal(constOrder);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(NodeCheckpoint.MAGIC);
+            out.writeInt(NodeCheckpoint.FORMAT_VERSION);
+            out.writeUTF(TileTypeCache.rapidWrightVersion());
+            out.writeInt(constOrder.length);
+            for (int id : constOrder)
+                out.writeUTF(constIds.get(id));
+            out.writeInt(band.nodeIntent.size());
+            for (int i = 0; i < band.nodeIntent.size(); i++)
+                out.writeInt(toLocal[band.nodeIntent.get(i)]);
+            writeIntList(out, band.nodeWireStart);
+            writeIntList(out, band.wires);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Must be called in the scope of the band's task. Returns null, without interning anything, if the checkpoint is
+    // not usable.
+    private NodeBand loadNodeBand(byte[] entry, int row0, int row1) {
+        String[] strings;
+        IntList intents;
+        NodeBand band = new NodeBand(row0, row1);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry))) {
+            if (in.readInt() != NodeCheckpoint.MAGIC || in.readInt() != NodeCheckpoint.FORMAT_VERSION
+                    || !in.readUTF().equals(TileTypeCache.rapidWrightVersion()))
+                return null;
+            strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++)
+                strings[i] = in.readUTF();
+            intents = readIntList(in);
+            band.nodeWireStart = readIntList(in);
+            band.wires = readIntList(in);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable checkpoint: " + e);
+            return null;
+        }
+        int[] constMap = new int[strings.length];
+        for (int i = 0; i < strings.length; i++)
+            constMap[i] = makeConstId(strings[i]);
+        for (int i = 0; i < intents.size(); i++)
+            band.nodeIntent.add(constMap[intents.get(i)]);
+        return band;
+    }
+
+    // Pip delays from a TimingModel. Note this is a first-pass model. It assumes that all pips are buferred and all
+    // pips have the same delay regardless of location. It is to guide the nextpnr router rather than give sign-off
+    // quality STA.
+    // calcDelay only sees the TimingGroup, which holds the pip and its start and end nodes with their intents, so each
+    // pip of a tile is timed once; the reverse direction of a bidirectional pip has the same TimingGroup and reuses it.
+    static class PipTiming {
+        private final TimingModel tmg;
+
+        public PipTiming(TimingModel tmg) {
+            this.tmg = tmg;
+        }
+
+        // Delay of a node by itself, as calcDelay counts it at either end of a pip
+        public int nodeDelay(Node n) {
+            TimingGroup tg = new TimingGroup(tmg);
+            tg.add(n, n.getIntentCode());
+            return (int)tmg.calcDelay(tg);
+        }
+
+        private int calcDelay(PIP p) {
+            TimingGroup tg = new TimingGroup(tmg);
+            tg.add(p.getStartNode(), p.getStartWire().getIntentCode());
+            tg.add(p);
+            tg.add(p.getEndNode(), p.getEndWire().getIntentCode());
+            return (int)tmg.calcDelay(tg);
+        }
+
+        // Delays of all the pips of a tile, computed in parallel
+        public int[] getDelays(List<PIP> pips) {
+            return IntStream.range(0, pips.size()).parallel().map(i -> calcDelay(pips.get(i))).toArray();
+        }
+    }
+
+    // What importTile needs from a SiteInst of one site type placed on a site of some primary type: its BELs, the
+    // site pips reachable from their pins, and the mapping of its site pins to those of the primary type. SiteInst
+    // creation is expensive, so this is probed once per pair of types (and device) and then replayed into
+    // every site and tile type using it.
+    static class SiteTemplate {
+        public final SiteTypeEnum siteType, primarySiteType;
+        public final List<BEL> bels;
+        public final List<SitePIP> sitePips;
+        private final HashMap<String, String> primarySitePinNames = new HashMap<>();
+
+        public SiteTemplate(Design des, Site s, SiteTypeEnum siteType) {
+            this.siteType = siteType;
+            this.primarySiteType = s.getSiteTypeEnum();
+            SiteInst si = new SiteInst(s.getName() + "_" + siteType, des, siteType, s);
+            bels = Arrays.asList(si.getBELs());
+            LinkedHashSet<SitePIP> pips = new LinkedHashSet<>(); // in bel, then pin order
+            for (BEL b : bels) {
+                for (BELPin bp : b.getPins()) {
+                    String sitePin = bp.getConnectedSitePinName();
+                    if (sitePin != null)
+                        primarySitePinNames.put(sitePin, si.getPrimarySitePinName(sitePin));
+                    pips.addAll(bp.getSitePIPs());
+                }
+            }
+            sitePips = new ArrayList<>(pips);
+            si.unPlace();
+        }
+
+        public String getPrimarySitePinName(String sitePin) {
+            return primarySitePinNames.get(sitePin);
+        }
+    }
+
+    // State shared by all the exports of one run: the worker pool, the tile type cache, pip timing per device series
+    // and site templates per device. TimingModels are only built once a tile type needs importing.
+    static class ExportSession {
+        public final int threads, bandRows;
+        public boolean nodeTemplates = false, sharedWireToNode = false, nodeBounds = false;
+        public long progressMillis = 2000;
+        public File spillDir = null; // spill mode if set
+        public String region = null; // see Region.parse, null for the whole device
+        public int lookaheadRange = 0, lookaheadSamples = 4; // no router lookahead table if the range is 0
+        public int belIndexBucket = 0; // no bel index if 0
+        public boolean belBuckets = false;
+        public boolean sitePinTiming = false;
+        public boolean siteReach = false;
+        public ExportProfile profile = ExportProfile.NONE;
+        public File checkpointDir = null;
+        public boolean resume = false;
+        public final ExecutorService pool;
+        public final TileTypeCache cache;
+        private final ConcurrentHashMap<Series, Future<PipTiming>> timingModels = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, SiteTemplate> siteTemplates = new ConcurrentHashMap<>();
+
+        public ExportSession(int threads, int bandRows, TileTypeCache cache) {
+            this.threads = threads;
+            this.bandRows = bandRows;
+            this.cache = cache;
+            this.pool = Executors.newFixedThreadPool(threads);
+        }
+
+        // Two workers may probe the same types concurrently; either result is equivalent
+        public SiteTemplate getSiteTemplate(Design des, Site s, SiteTypeEnum siteType) {
+            String key = des.getDevice().getName() + "/" + s.getSiteTypeEnum() + "/" + siteType;
+            SiteTemplate st = siteTemplates.get(key);
+            if (st == null) {
+                st = new SiteTemplate(des, s, siteType);
+                SiteTemplate existing = siteTemplates.putIfAbsent(key, st);
+                if (existing != null)
+                    st = existing;
+            }
+            return st;
+        }
+
+        public PipTiming getPipTiming(Design des) {
+            FutureTask<PipTiming> build = new FutureTask<>(() -> {
+                TimingModel tmg = new TimingModel(des);
+                tmg.build();
+                return new PipTiming(tmg);
+            });
+            Future<PipTiming> f = timingModels.putIfAbsent(des.getDevice().getSeries(), build);
+            if (f == null) {
+                f = build;
+                build.run();
+            }
+            return getResult(f);
+        }
+    }
+
+    private static void writeTileType(BBAWriter bba, NextpnrTileType tt) throws IOException {
+        CompactTileType td = tt.data;
+        // List of wires on bels in tile
+        for (int b = 0; b < td.belCount; b++) {
+            bba.label("t" + tt.index + "b" + b + "_wires");
+            for (int i = td.belPortStart[b]; i < td.belPortStart[b + 1]; i++) {
+                bba.u32(td.belPortName[i]); // port name
+                bba.u32(td.belPortType[i]); // port type
+                bba.u32(td.belPortWire[i]); // index of connected tile wire
+            }
+        }
+        // List of uphill pips, downhill pips and bel ports on wires in tile
+        for (int w = 0; w < td.wireCount; w++) {
+            bba.label("t" + tt.index + "w" + w + "_uh");
+            for (int i = td.uphillStart[w]; i < td.uphillStart[w + 1]; i++)
+                bba.u32(td.uphill[i]); // index of uphill pip
+            bba.label("t" + tt.index + "w" + w + "_dh");
+            for (int i = td.downhillStart[w]; i < td.downhillStart[w + 1]; i++)
+                bba.u32(td.downhill[i]); // index of downhill pip
+            bba.label("t" + tt.index + "w" + w + "_bels");
+            for (int i = td.belPinStart[w]; i < td.belPinStart[w + 1]; i++) {
+                bba.u32(td.belPinBel[i]); // index of bel in tile
+                bba.u32(td.belPinPort[i]); // bel port constid
+            }
+        }
+        // Bel data for tiletype
+        bba.label("t" + tt.index + "_bels");
+        for (int b = 0; b < td.belCount; b++) {
+            bba.u32(td.belName[b]); //name constid
+            bba.u32(td.belType[b]); //type (compatible type for nextpnr) constid
+            bba.u32(td.belNativeType[b]); //native type (original type in RapidWright) constid
+            bba.u32(-1); //FIXME: timing instance ID
+            bba.u32(td.belPortStart[b + 1] - td.belPortStart[b]); //number of bel port wires
+            bba.ref("t" + tt.index + "b" + b + "_wires"); //ref to list of bel wires
+            bba.u16(td.belZ[b]); // bel z position
+            bba.u16(td.belSite[b]); // bel site index in tile
+            bba.u16(td.belSiteVariant[b]); // bel site variant
+            bba.u16(td.belIsRouting[b]);
+        }
+
+        // Wire data for tiletype
+        bba.label("t" + tt.index + "_wires");
+        for (int w = 0; w < td.wireCount; w++) {
+            bba.u32(td.wireName[w]); //name constid
+            bba.u32(td.uphillStart[w + 1] - td.uphillStart[w]); //number of uphill pips
+            bba.u32(td.downhillStart[w + 1] - td.downhillStart[w]); //number of downhill pips
+            bba.u32(0); //FIXME: timing class
+            bba.ref("t" + tt.index + "w" + w + "_uh"); //ref to list of uphill pips
+            bba.ref("t" + tt.index + "w" + w + "_dh"); //ref to list of downhill pips
+            bba.u32(td.belPinStart[w + 1] - td.belPinStart[w]); // number of bel pins
+            bba.ref("t" + tt.index + "w" + w + "_bels"); //ref to list of bel pins
+
+            bba.u16(td.wireSite[w]); //site index or -1 if not a site wire
+            bba.u16(0); //padding
+            bba.u32(td.wireIntent[w]); //wire intent constid
+        }
+
+        // Pip data for tiletype
+        bba.label("t" + tt.index + "_pips");
+        for (int p = 0; p < td.pipCount; p++) {
+            bba.u32(td.pipFrom[p]); //src tile wire index
+            bba.u32(td.pipTo[p]); //dst tile wire index
+            bba.u32(td.pipTmgCls[p]);
+            bba.u16(0); // not used
+            bba.u16(td.pipType[p]); // pip type/flags
+
+            bba.u32(td.pipBel[p]); //bel name constid for site pips
+            bba.u32(td.pipExtraData[p]); //extra data for pseudo-pips
+            bba.u16(td.pipSite[p]); //site index in tile for site pips
+            bba.u16(td.pipSiteVariant[p]); //site variant index for site pips
+        }
+    }
+
+    // Bel indices of each tile type grouped by nextpnr bel type, and the number of bels of each type in the device
+    static int writeBelBuckets(BBAWriter bba, List<NextpnrTileType> tileTypes, List<NextpnrTileInst> tileInsts)
+            throws IOException {
+        int[] instCount = new int[tileTypes.size()];
+        for (NextpnrTileInst ti : tileInsts)
+            ++instCount[ti.type];
+        TreeMap<Integer, Long> deviceCount = new TreeMap<>();
+        ArrayList<TreeMap<Integer, IntList>> buckets = new ArrayList<>();
+        for (NextpnrTileType tt : tileTypes) {
+            TreeMap<Integer, IntList> byType = new TreeMap<>();
+            for (int b = 0; b < tt.data.belCount; b++)
+                byType.computeIfAbsent(tt.data.belType[b], k -> new IntList()).add(b);
+            for (Map.Entry<Integer, IntList> e : byType.entrySet())
+                deviceCount.merge(e.getKey(), (long)e.getValue().size() * instCount[tt.index], Long::sum);
+            buckets.add(byType);
+        }
+        for (NextpnrTileType tt : tileTypes) {
+            int k = 0;
+            for (IntList bels : buckets.get(tt.index).values()) {
+                bba.label("t" + tt.index + "k" + k++ + "_bels");
+                for (int i = 0; i < bels.size(); i++)
+                    bba.u32(bels.get(i)); // index of bel in tile type
+            }
+            bba.label("t" + tt.index + "_buckets");
+            k = 0;
+            for (Map.Entry<Integer, IntList> e : buckets.get(tt.index).entrySet()) {
+                bba.u32(e.getKey()); // bel type constid
+                bba.u32(e.getValue().size()); // number of bels
+                bba.ref("t" + tt.index + "k" + k++ + "_bels");
+            }
+        }
+        bba.label("tiletype_buckets");
+        for (NextpnrTileType tt : tileTypes) {
+            bba.u32(buckets.get(tt.index).size()); // number of bel types, by ascending constid
+            bba.ref("t" + tt.index + "_buckets");
+        }
+        bba.label("bel_bucket_counts");
+        for (Map.Entry<Integer, Long> e : deviceCount.entrySet()) {
+            bba.u32(e.getKey()); // bel type constid
+            bba.u32((int)(long)e.getValue()); // number of bels of this type in the device
+        }
+        return deviceCount.size();
+    }
+
+    // ChipInfoPOD flags, version 3 and later
+    private static final int CHIP_FLAG_NODE_TEMPLATES = 0x1;
+    private static final int CHIP_FLAG_RELATIVE_WIRE_TO_NODE = 0x2;
+    private static final int CHIP_FLAG_LOOKAHEAD = 0x4;
+    private static final int CHIP_FLAG_NODE_BOUNDS = 0x8;
+    private static final int CHIP_FLAG_BEL_INDEX = 0x10;
+    private static final int CHIP_FLAG_BEL_BUCKETS = 0x20;
+    private static final int CHIP_FLAG_SITE_PIN_TIMING = 0x40;
+    private static final int CHIP_FLAG_SITE_REACH = 0x80;
+    private static final int CHIP_FLAG_SITE_TYPES = 0x100;
+
+    // Optional sections that are not present are left as a zero offset, as their flag says not to read them
+    private static void refOrNull(BBAWriter bba, boolean present, String label) throws IOException {
+        if (present)
+            bba.ref(label);
+        else
+            bba.u32(0);
+    }
 
-    public static ArrayList<NextpnrTileInst> tileInsts = new ArrayList<>();
-    public static HashMap<Integer, NextpnrTileInst> tileToTileInst = new HashMap<>();
+    public final ArrayList<NextpnrTileType> tileTypes = new ArrayList<>();
+    public final HashMap<TileTypeEnum, Integer> tileTypeIndices = new HashMap<>();
+
+    public final ArrayList<NextpnrTileInst> tileInsts = new ArrayList<>();
+    private IntColumn wireToNode; // wire to node maps of all tiles, see NextpnrTileInst.wire_base
+    private Region region; // tiles exported
+    private EnumSet<TileTypeEnum> excludedTileTypes; // by the profile
+
+
+    static <T> T getResult(Future<T> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
 
+    private static void usage() {
+        System.err.println("Usage: bbaexport [options] <device> <constids.inc> <output.bba|output.bin>");
+        System.err.println("       bbaexport [options] --batch <constids.inc> <output dir> <device>...");
+        System.err.println("   e.g bbaexport xczu2cg-sbva484-1-e ./rapidwright/constids.inc ./rapidwright/xczu2cg.bba");
+        System.err.println("   Use bbasm to convert bba to bin for nextpnr, or give an output filename ending in .bin");
+        System.err.println("   to write the (little endian) binary chipdb directly");
+        System.err.println("   --threads N     number of worker threads (default: number of processors)");
+        System.err.println("   --band-rows N   rows of tiles per parallel node discovery task (default: 4)");
+        System.err.println("   --cache-dir DIR reuse imported tile types from (and add new ones to) a cache directory");
+        System.err.println("   --batch         export several devices in one run, to <output dir>/<device>.bba");
+        System.err.println("   --bin           in batch mode, write <output dir>/<device>.bin instead");
+        System.err.println("   --jobs N        in batch mode, number of devices exported concurrently (default: 1)");
+        System.err.println("   --node-templates store nodes as shared relative shapes plus an anchor tile (smaller");
+        System.err.println("                   chipdb, needs a nextpnr that reads version 3 chipdbs)");
+        System.err.println("   --shared-wire-to-node store tile wire to node maps relative to a per-tile base, sharing");
+        System.err.println("                   identical maps between tiles (also needs version 3 support)");
+        System.err.println("   --node-bounds   store the span of tiles each node reaches (version 5 chipdb)");
+        System.err.println("   --spill-dir DIR keep wire to node maps and node tables in memory-mapped files created in DIR");
+        System.err.println("                   (this does not bound the heap, which still grows with the device)");
+        System.err.println("   --region R      only export the tiles in R, either a tile range col0,row0,col1,row1 or a range of");
+        System.err.println("                   clock regions X0Y0:X1Y1; other tiles are left empty and nodes are clipped");
+        System.err.println("   --profile P     leave out the tile, site and bel types listed by P, either fabric-only (PS, GTs,");
+        System.err.println("                   PCIe, SYSMON and other hard blocks) or a profile file; tiles of left out types");
+        System.err.println("                   are left empty, like those outside a region");
+        System.err.println("   --lookahead     add a router lookahead table (least delay from each wire intent to a sink by tile");
+        System.err.println("                   offset), found by searches from sample interconnect tiles (version 4 chipdb)");
+        System.err.println("   --lookahead-range N  largest tile offset in the lookahead table (default: 12)");
+        System.err.println("   --lookahead-samples N  number of interconnect tiles to search from (default: 4)");
+        System.err.println("   --bel-index     add a spatial index of the bels of each type, by cells of a coarse tile grid");
+        System.err.println("                   (version 6 chipdb)");
+        System.err.println("   --bel-index-bucket N  width and height of a bel index grid cell in tiles (default: 8)");
+        System.err.println("   --bel-buckets   add the bels of each tile type grouped by bel type, and the number of bels of each");
+        System.err.println("                   type in the device (version 7 chipdb)");
+        System.err.println("   --site-pin-timing add the least pips and delay between each site pin and the interconnect, by site");
+        System.err.println("                   type (version 10 chipdb)");
+        System.err.println("   --site-reach    add which bel pins each site pin reaches through site pips, for each site");
+        System.err.println("                   variant (version 9 chipdb)");
+        System.err.println("   --checkpoint-dir DIR save finished tile types and node discovery bands to DIR as they complete");
+        System.err.println("   --resume        continue an interrupted export from its checkpoint directory");
+        System.err.println("   --metrics FILE  write phase timings, throughput, peak heap and output section sizes as JSON");
+        System.err.println("   --progress-interval S  seconds between progress lines (default: 2, 0 for every step)");
+        System.exit(1);
+    }
 
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] cmdline) throws IOException {
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        int bandRows = 4;
+        int jobs = 1;
+        String cacheDir = null, metricsFile = null, spillDir = null, checkpointDir = null, region = null;
+        ExportProfile profile = ExportProfile.NONE;
+        int lookaheadRange = 0, lookaheadSamples = 4;
+        int belIndexBucket = 0;
+        long progressMillis = 2000;
+        boolean resume = false, batch = false, batchBin = false;
+        boolean nodeTemplates = false, sharedWireToNode = false, nodeBounds = false, belBuckets = false;
+        boolean sitePinTiming = false, siteReach = false;
+        ArrayList<String> args = new ArrayList<>();
+        for (int i = 0; i < cmdline.length; i++) {
+            if (cmdline[i].equals("--threads") && i + 1 < cmdline.length)
+                threads = Integer.parseInt(cmdline[++i]);
+            else if (cmdline[i].equals("--band-rows") && i + 1 < cmdline.length)
+                bandRows = Integer.parseInt(cmdline[++i]);
+            else if (cmdline[i].equals("--cache-dir") && i + 1 < cmdline.length)
+                cacheDir = cmdline[++i];
+            else if (cmdline[i].equals("--batch"))
+                batch = true;
+            else if (cmdline[i].equals("--bin"))
+                batchBin = true;
+            else if (cmdline[i].equals("--jobs") && i + 1 < cmdline.length)
+                jobs = Integer.parseInt(cmdline[++i]);
+            else if (cmdline[i].equals("--node-templates"))
+                nodeTemplates = true;
+            else if (cmdline[i].equals("--shared-wire-to-node"))
+                sharedWireToNode = true;
+            else if (cmdline[i].equals("--node-bounds"))
+                nodeBounds = true;
+            else if (cmdline[i].equals("--spill-dir") && i + 1 < cmdline.length)
+                spillDir = cmdline[++i];
+            else if (cmdline[i].equals("--region") && i + 1 < cmdline.length)
+                region = cmdline[++i];
+            else if (cmdline[i].equals("--lookahead"))
+                lookaheadRange = Math.max(lookaheadRange, 12);
+            else if (cmdline[i].equals("--lookahead-range") && i + 1 < cmdline.length)
+                lookaheadRange = Integer.parseInt(cmdline[++i]);
+            else if (cmdline[i].equals("--lookahead-samples") && i + 1 < cmdline.length)
+                lookaheadSamples = Integer.parseInt(cmdline[++i]);
+            else if (cmdline[i].equals("--bel-index"))
+                belIndexBucket = (belIndexBucket > 0) ? belIndexBucket : 8;
+            else if (cmdline[i].equals("--bel-index-bucket") && i + 1 < cmdline.length)
+                belIndexBucket = Integer.parseInt(cmdline[++i]);
+            else if (cmdline[i].equals("--bel-buckets"))
+                belBuckets = true;
+            else if (cmdline[i].equals("--site-pin-timing"))
+                sitePinTiming = true;
+            else if (cmdline[i].equals("--site-reach"))
+                siteReach = true;
+            else if (cmdline[i].equals("--profile") && i + 1 < cmdline.length)
+                profile = ExportProfile.load(cmdline[++i]);
+            else if (cmdline[i].equals("--checkpoint-dir") && i + 1 < cmdline.length)
+                checkpointDir = cmdline[++i];
+            else if (cmdline[i].equals("--resume"))
+                resume = true;
+            else if (cmdline[i].equals("--metrics") && i + 1 < cmdline.length)
+                metricsFile = cmdline[++i];
+            else if (cmdline[i].equals("--progress-interval") && i + 1 < cmdline.length)
+                progressMillis = (long)(Double.parseDouble(cmdline[++i]) * 1000);
+            else if (cmdline[i].startsWith("--"))
+                usage();
+            else
+                args.add(cmdline[i]);
+        }
+        if (args.size() < 3 || threads < 1 || bandRows < 1 || jobs < 1 || progressMillis < 0 || lookaheadRange < 0 || lookaheadSamples < 1 || belIndexBucket < 0 || (resume && checkpointDir == null) || (!batch && args.size() != 3))
+            usage();
+
+        ArrayList<String> parts = new ArrayList<>(), outputs = new ArrayList<>();
+        String constIdsFile;
+        if (batch) {
+            constIdsFile = args.get(0);
+            for (String part : args.subList(2, args.size())) {
+                parts.add(part);
+                outputs.add(new File(args.get(1), part + (batchBin ? ".bin" : ".bba")).getPath());
+            }
+        } else {
+            parts.add(args.get(0));
+            constIdsFile = args.get(1);
+            outputs.add(args.get(2));
+        }
 
-        if (args.length < 3) {
-            System.err.println("Usage: bbaexport <device> <constids.inc> <output.bba>");
-            System.err.println("   e.g bbaexport xczu2cg-sbva484-1-e ./rapidwright/constids.inc ./rapidwright/xczu2cg.bba");
-            System.err.println("   Use bbasm to convert bba to bin for nextpnr");
+        // Finished tile types are checkpointed by keeping them in an on-disk cache
+        if (checkpointDir != null && cacheDir == null)
+            cacheDir = new File(checkpointDir, "tiletypes").getPath();
+        // Tile types are only worth keeping in memory if another part may use them
+        boolean inMemory = parts.size() > 1;
+        TileTypeCache cache = (cacheDir != null || inMemory) ? new TileTypeCache((cacheDir != null) ? new File(cacheDir) : null, inMemory) : null;
+        ExportSession session = new ExportSession(threads, bandRows, cache);
+        session.nodeTemplates = nodeTemplates;
+        session.sharedWireToNode = sharedWireToNode;
+        session.nodeBounds = nodeBounds;
+        session.progressMillis = progressMillis;
+        session.spillDir = (spillDir != null) ? new File(spillDir) : null;
+        session.region = region;
+        session.profile = profile;
+        session.lookaheadRange = lookaheadRange;
+        session.lookaheadSamples = lookaheadSamples;
+        session.belIndexBucket = belIndexBucket;
+        session.belBuckets = belBuckets;
+        session.sitePinTiming = sitePinTiming;
+        session.siteReach = siteReach;
+        session.checkpointDir = (checkpointDir != null) ? new File(checkpointDir) : null;
+        session.resume = resume;
+        long runStart = System.nanoTime();
+
+        // Devices are exported by their own threads, all sharing the session's worker pool
+        ExecutorService exportPool = Executors.newFixedThreadPool(Math.min(jobs, parts.size()));
+        ArrayList<Future<ExportMetrics>> exports = new ArrayList<>();
+        for (int i = 0; i < parts.size(); i++) {
+            String part = parts.get(i), output = outputs.get(i);
+            String prefix = batch ? ("[" + part + "] ") : "";
+            exports.add(exportPool.submit(() -> {
+                bbaexport exporter = new bbaexport(session, part, prefix);
+                exporter.export(constIdsFile, output);
+                return exporter.metrics;
+            }));
+        }
+        int failed = 0;
+        ArrayList<ExportMetrics> metrics = new ArrayList<>();
+        try {
+            for (int i = 0; i < exports.size(); i++) {
+                try {
+                    metrics.add(getResult(exports.get(i)));
+                } catch (RuntimeException e) {
+                    if (!batch)
+                        throw e;
+                    System.err.println("Failed to export " + parts.get(i) + ":");
+                    e.printStackTrace();
+                    ++failed;
+                }
+            }
+        } finally {
+            // The pool threads would otherwise keep the JVM running after a failed single export
+            exportPool.shutdown();
+            session.pool.shutdown();
+        }
+        if (metricsFile != null)
+            ExportMetrics.writeReport(new File(metricsFile), threads, System.nanoTime() - runStart, metrics);
+        if (failed > 0) {
+            System.err.println(failed + "/" + parts.size() + " exports failed");
             System.exit(1);
         }
+    }
 
-        // Device d = Device.getDevice("xczu2cg-sbva484-1-e");
+    // Site names, package pins and coordinates of a tile, for its entry in tile_insts
+    private static ArrayList<NextpnrSiteInst> makeSites(Tile t, HashMap<String, String> siteToPin) {
+        ArrayList<NextpnrSiteInst> sites = new ArrayList<>();
+        HashMap<String, Integer> site_offset_x = new HashMap<>(), site_offset_y = new HashMap<>();
+
+        for (Site s : t.getSites()) {
+            String type = s.getSiteTypeEnum().toString();
+            if (type.startsWith("IOB33"))
+                type = "IOB33";
+            site_offset_x.putIfAbsent(type, s.getInstanceX());
+            site_offset_y.putIfAbsent(type, s.getInstanceY());
+            if (site_offset_x.get(type) > s.getInstanceX())
+                site_offset_x.put(type, s.getInstanceX());
+            if (site_offset_y.get(type) > s.getInstanceY())
+                site_offset_y.put(type, s.getInstanceY());
+        }
 
-        // Seems like we need to use a Design to create SiteInsts to probe alternate site types...
-        Design des = new Design("top",  args[0]);
+        for (Site s : t.getSites()) {
+            NextpnrSiteInst nsi = new NextpnrSiteInst();
+            nsi.name = s.getName();
+            if (siteToPin.containsKey(s.getName()))
+                nsi.packagePin = siteToPin.get(s.getName());
+            else
+                nsi.packagePin = "."; // fixme: empty strings in bba
+            nsi.site_x = s.getInstanceX();
+            nsi.site_y = s.getInstanceY();
+            String type = s.getSiteTypeEnum().toString();
+            if (type.startsWith("IOB33"))
+                type = "IOB33";
+            nsi.rel_x = s.getInstanceX() - site_offset_x.get(type);
+            nsi.rel_y = s.getInstanceY() - site_offset_y.get(type);
+            Tile intert = intTileOf(s);
+            if (intert != null) {
+                nsi.inter_x = intert.getColumn();
+                nsi.inter_y = intert.getRow();
+            } else {
+                nsi.inter_x = -1;
+                nsi.inter_y = -1;
+            }
+            sites.add(nsi);
+        }
+        return sites;
+    }
+
+    // The interconnect tile of a site, or null if it has none
+    private static Tile intTileOf(Site s) {
+        try {
+            return s.getIntTile();
+        } catch (java.lang.ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    // Flat index of the interconnect tile of each site of each tile inst, or of the tile itself for a site without
+    // one, as nextpnr's estimateDelay locates a site wire
+    private int[][] siteInterTiles(Device d) {
+        int[][] inter = new int[tileInsts.size()][];
+        for (NextpnrTileInst ti : tileInsts) {
+            Tile t = d.getTile(ti.index / d.getColumns(), ti.index % d.getColumns());
+            Site[] sites = exported(t) ? t.getSites() : new Site[0];
+            inter[ti.index] = new int[sites.length];
+            for (int i = 0; i < sites.length; i++) {
+                Tile intert = intTileOf(sites[i]);
+                inter[ti.index][i] = (intert != null) ? intert.getRow() * d.getColumns() + intert.getColumn() : ti.index;
+            }
+        }
+        return inter;
+    }
+
+    // Up to count exported interconnect tiles, spread evenly over those of the device
+    private IntList lookaheadSamples(Device d, HashSet<TileTypeEnum> intTileTypes, int count) {
+        IntList intTiles = new IntList();
+        for (int row = region.row0; row <= region.row1; row++) {
+            for (int col = region.col0; col <= region.col1; col++) {
+                Tile t = d.getTile(row, col);
+                if (exported(t) && intTileTypes.contains(t.getTileTypeEnum()))
+                    intTiles.add(row * d.getColumns() + col);
+            }
+        }
+        IntList samples = new IntList();
+        int n = Math.min(count, intTiles.size());
+        for (int i = 0; i < n; i++)
+            samples.add(intTiles.get((int)((2L * i + 1) * intTiles.size() / (2L * n))));
+        return samples;
+    }
 
-        if (args[0].contains("xc7"))
-            xc7_flag = true;
+    public void export(String constIdsFile, String output) throws IOException {
+        int threads = session.threads, bandRows = session.bandRows;
+        ExecutorService pool = session.pool;
+        TileTypeCache cache = session.cache;
 
         //Design des = new Design("top", "xczu2cg-sbva484-1-e");
         Device d = des.getDevice();
+        ExportMetrics.Progress progress = new ExportMetrics.Progress(log_prefix, session.progressMillis);
+        region = (session.region != null) ? Region.parse(d, session.region) : Region.wholeDevice(d);
+        if (!region.isWholeDevice(d))
+            log("Exporting tiles " + region + " (first column, first row, last column, last row)");
+        excludedTileTypes = EnumSet.noneOf(TileTypeEnum.class);
+        for (TileTypeEnum tt : TileTypeEnum.values())
+            if (session.profile.excludesTileType(tt))
+                excludedTileTypes.add(tt);
+        if (!session.profile.isEmpty())
+            log("Leaving out the tile, site and bel types of profile " + session.profile.name);
+        metrics.begin("constids");
         // Known constids
-        Scanner scanner = new Scanner(new File(args[1]));
+        Scanner scanner = new Scanner(new File(constIdsFile));
         int known_id_count = 0;
         makeConstId("");
         ++known_id_count;
@@ -797,375 +2342,530 @@ public class bbaexport {
             ++known_id_count;
         }
 
-        TimingModel tmg = new TimingModel(des);
-        tmg.build();
-
         // Unique tiletypes
-        HashSet<TileTypeEnum> seenTileTypes = new HashSet<>();
+        metrics.begin("tile_types");
+        // These are imported in parallel, each worker creating SiteInsts in a Design of its own. Constids and pip
+        // timing classes are then renumbered in tile type order, so the output is the same as a serial import.
+        ConcurrentLinkedQueue<Design> workerDesigns = new ConcurrentLinkedQueue<>();
+        ArrayList<Tile> tileTypeTiles = new ArrayList<>();
+        ArrayList<Future<InternScope>> importJobs = new ArrayList<>();
+        AtomicInteger cacheHits = new AtomicInteger();
+        int firstImportConstId = constIds.size(), firstImportPipDelay = pipDelays.size();
+        boolean anyEmpty = false;
         for (Tile t : d.getAllTiles()) {
-            if (seenTileTypes.contains(t.getTileTypeEnum()))
+            if (!exported(t)) {
+                anyEmpty = true;
+                continue;
+            }
+            if (tileTypeIndices.containsKey(t.getTileTypeEnum()))
                 continue;
-            seenTileTypes.add(t.getTileTypeEnum());
             tileTypeIndices.put(t.getTileTypeEnum(), tileTypes.size());
 
             NextpnrTileType ntt = new NextpnrTileType();
             ntt.index = tileTypes.size();
-            ntt.importTile(d, des, tmg, t);
             tileTypes.add(ntt);
-            System.out.println("Processed tile type " + t.getTileTypeEnum().name());
+            tileTypeTiles.add(t);
+            importJobs.add(pool.submit(() -> {
+                InternScope scope = new InternScope();
+                currentScope.set(scope);
+                try {
+                    String key = TileTypeCache.key(t.getTileTypeEnum(), xc7_flag, session.profile);
+                    byte[] entry = (cache != null) ? cache.get(key) : null;
+                    if (entry != null && loadTileType(ntt, entry)) {
+                        cacheHits.incrementAndGet();
+                    } else {
+                        Design wd = workerDesigns.poll();
+                        if (wd == null)
+                            wd = new Design("top", part);
+                        ntt.importTile(d, wd, session.getPipTiming(des), t);
+                        workerDesigns.add(wd);
+                        ntt.compact();
+                        if (cache != null)
+                            cache.put(key, saveTileType(ntt, scope));
+                    }
+                } finally {
+                    currentScope.remove();
+                }
+                return scope;
+            }));
+        }
+        ArrayList<IntList> importConstIds = new ArrayList<>(), importPipDelays = new ArrayList<>();
+        for (int i = 0; i < importJobs.size(); i++) {
+            InternScope scope = getResult(importJobs.get(i));
+            importConstIds.add(scope.constIds.order);
+            importPipDelays.add(scope.pipDelays.order);
+            progress.update(i + 1, importJobs.size(), "Processed tile types");
+        }
+        int[] constIdMap = constIds.renumber(firstImportConstId, importConstIds);
+        int[] pipDelayMap = pipDelays.renumber(firstImportPipDelay, importPipDelays);
+        for (NextpnrTileType tt : tileTypes)
+            tt.remapIds(constIdMap, pipDelayMap);
+        if (cache != null)
+            log("Loaded " + cacheHits.get() + "/" + tileTypes.size() + " tile types from cache");
+        // Tiles outside the region or of a left out type share a tile type with nothing in it
+        int emptyTileType = -1;
+        if (anyEmpty) {
+            NextpnrTileType ntt = new NextpnrTileType();
+            ntt.index = emptyTileType = tileTypes.size();
+            ntt.type = makeConstId("EMPTY_TILE");
+            ntt.bels = new ArrayList<>();
+            ntt.wires = new ArrayList<>();
+            ntt.pips = new ArrayList<>();
+            ntt.compact();
+            tileTypes.add(ntt);
+        }
+        metrics.count("tile_types", tileTypes.size());
+        metrics.count("cache_hits", cacheHits.get());
+        for (NextpnrTileType tt : tileTypes) {
+            metrics.count("bels", tt.data.belCount);
+            metrics.count("wires", tt.data.wireCount);
+            metrics.count("pips", tt.data.pipCount);
         }
 
         // Tile entries
+        metrics.begin("tile_insts");
+        // In spill mode the wire to node maps and per-node tables are kept in memory-mapped files, and tile names and
+        // sites are only produced as they are written. The RapidWright device, tile types, the binary writer's label
+        // and string tables and the node template table are still kept in memory.
+        File spillDir = session.spillDir;
+        if (spillDir != null)
+            log("Keeping wire to node maps and node tables in " + spillDir);
 
         HashMap<String, String> siteToPin = new HashMap<>();
         for (PackagePin p : d.getActivePackage().getPackagePinMap().values())
             if (p != null && p.getSite() != null)
                 siteToPin.put(p.getSite().getName(), p.getName());
 
+        wireToNode = new IntColumn(spillDir);
         for (int y = 0; y < d.getRows(); y++) {
             for (int x = 0; x < d.getColumns(); x++) {
                 Tile t = d.getTile(y, x);
+                boolean inside = exported(t);
                 NextpnrTileInst nti = new NextpnrTileInst();
-                nti.name = t.getName();
-                nti.type = tileTypeIndices.get(t.getTileTypeEnum());
+                nti.type = inside ? tileTypeIndices.get(t.getTileTypeEnum()) : emptyTileType;
                 nti.index = tileInsts.size();
-                nti.sites = new ArrayList<>();
-
-                HashMap<String, Integer> site_offset_x = new HashMap<>(), site_offset_y = new HashMap<>();
-
-                for (Site s : t.getSites()) {
-                    String type = s.getSiteTypeEnum().toString();
-                    if (type.startsWith("IOB33"))
-                        type = "IOB33";
-                    site_offset_x.putIfAbsent(type, s.getInstanceX());
-                    site_offset_y.putIfAbsent(type, s.getInstanceY());
-                    if (site_offset_x.get(type) > s.getInstanceX())
-                        site_offset_x.put(type, s.getInstanceX());
-                    if (site_offset_y.get(type) > s.getInstanceY())
-                        site_offset_y.put(type, s.getInstanceY());
+                if (spillDir == null) {
+                    nti.name = t.getName();
+                    nti.sites = inside ? makeSites(t, siteToPin) : new ArrayList<>();
                 }
-
-                for (Site s : t.getSites()) {
-                    NextpnrSiteInst nsi = new NextpnrSiteInst();
-                    nsi.name = s.getName();
-                    if (siteToPin.containsKey(s.getName()))
-                        nsi.packagePin = siteToPin.get(s.getName());
-                    else
-                        nsi.packagePin = "."; // fixme: empty strings in bba
-                    nsi.site_x = s.getInstanceX();
-                    nsi.site_y = s.getInstanceY();
-                    String type = s.getSiteTypeEnum().toString();
-                    if (type.startsWith("IOB33"))
-                        type = "IOB33";
-                    nsi.rel_x = s.getInstanceX() - site_offset_x.get(type);
-                    nsi.rel_y = s.getInstanceY() - site_offset_y.get(type);
-                    Tile intert = null;
-                    try {
-                        intert = s.getIntTile();
-                    } catch(java.lang.ArrayIndexOutOfBoundsException e) {
-
-                    }
-                    if (intert != null) {
-                        nsi.inter_x = intert.getColumn();
-                        nsi.inter_y = intert.getRow();
-                    } else {
-                        nsi.inter_x = -1;
-                        nsi.inter_y = -1;
-                    }
-                    nti.sites.add(nsi);
-                }
-                nti.tilewire_to_node = new Integer[t.getWireCount() + 4]; // +1 accounts for vcc/ground pseudo-wires
-                Arrays.fill(nti.tilewire_to_node, -1);
+                nti.wire_base = wireToNode.size();
+                nti.wire_count = inside ? t.getWireCount() + 4 : 0; // +1 accounts for vcc/ground pseudo-wires
+                wireToNode.addFill(nti.wire_count, -1);
                 tileInsts.add(nti);
-                tileToTileInst.put(t.getRow() * d.getColumns() + t.getColumn(), nti);
             }
         }
 
-        FileWriter bbaf = new FileWriter(args[2], false);
-        PrintWriter bba = new PrintWriter(bbaf);
-
+        metrics.count("tiles", tileInsts.size());
 
-        // Header
-        bba.println("pre #include \"nextpnr.h\"");
-        bba.println("pre NEXTPNR_NAMESPACE_BEGIN");
-        bba.println("post NEXTPNR_NAMESPACE_END");
-        bba.println("push chipdb_blob");
-        bba.println("offset32");
-        bba.println("ref chip_info chip_info");
-
-        bba.println("label extra_constid_strs");
-        for (int i = known_id_count; i < constIds.size(); i++)
-            bba.printf("str |%s|\n", constIds.get(i));
-        bba.println("align");
-        // Constant IDs additional to constids.inc
-        bba.println("label extra_constids");
-        bba.printf("u32 %d\n", known_id_count);
-        bba.printf("u32 %d\n", constIds.size() - known_id_count);
-        bba.println("ref extra_constid_strs");
-
-        // Tiletypes
-        for (NextpnrTileType tt : tileTypes) {
-            // List of wires on bels in tile
-            for (NextpnrBel b : tt.bels) {
-                bba.printf("label t%db%d_wires\n", tt.index, b.index);
-                for (NextpnrBelWire bw : b.belports) {
-                    bba.printf("u32 %d\n", bw.name); // port name
-                    bba.printf("u32 %d\n", bw.port_type); // port type
-                    bba.printf("u32 %d\n", bw.wire); // index of connected tile wire
-                }
-            }
-            // List of uphill pips, downhill pips and bel ports on wires in tile
-            for (NextpnrWire w : tt.wires) {
-                bba.printf("label t%dw%d_uh\n", tt.index, w.index);
-                for (int uh : w.pips_uh) {
-                    bba.printf("u32 %d\n", uh); // index of uphill pip
-                }
-                bba.printf("label t%dw%d_dh\n", tt.index, w.index);
-                for (int dh : w.pips_dh) {
-                    bba.printf("u32 %d\n", dh); // index of downhill pip
-                }
-                bba.printf("label t%dw%d_bels\n", tt.index, w.index);
-                for (NextpnrBelPin bp : w.belpins) {
-                    bba.printf("u32 %d\n", bp.bel); // index of bel in tile
-                    bba.printf("u32 %d\n", bp.port); // bel port constid
+        // Site type of each variant of each site of each tile type, from its first instance, interned before
+        // constids are written
+        int[][][] siteTypes = new int[tileTypes.size()][][];
+        if (session.sitePinTiming || session.siteReach) {
+            for (NextpnrTileInst ti : tileInsts) {
+                Tile t = d.getTile(ti.index / d.getColumns(), ti.index % d.getColumns());
+                if (siteTypes[ti.type] != null || !exported(t))
+                    continue;
+                Site[] sites = t.getSites();
+                siteTypes[ti.type] = new int[sites.length][];
+                for (int i = 0; i < sites.length; i++) {
+                    SiteTypeEnum[] alternates = sites[i].getAlternateSiteTypeEnums();
+                    siteTypes[ti.type][i] = new int[1 + alternates.length];
+                    siteTypes[ti.type][i][0] = makeConstId(sites[i].getSiteTypeEnum().toString());
+                    for (int v = 0; v < alternates.length; v++)
+                        siteTypes[ti.type][i][v + 1] = makeConstId(alternates[v].toString());
                 }
             }
-            // Bel data for tiletype
-            bba.printf("label t%d_bels\n", tt.index);
-            for (NextpnrBel b : tt.bels) {
-                bba.printf("u32 %d\n", b.name); //name constid
-                bba.printf("u32 %d\n", b.type); //type (compatible type for nextpnr) constid
-                bba.printf("u32 %d\n", b.nativeType); //native type (original type in RapidWright) constid
-                bba.printf("u32 %d\n", -1); //FIXME: timing instance ID
-                bba.printf("u32 %d\n", b.belports.size()); //number of bel port wires
-                bba.printf("ref t%db%d_wires\n", tt.index, b.index); //ref to list of bel wires
-                bba.printf("u16 %d\n", b.z); // bel z position
-                bba.printf("u16 %d\n", b.site); // bel site index in tile
-                bba.printf("u16 %d\n", b.siteVariant); // bel site variant
-                bba.printf("u16 %d\n", b.isRouting);
-            }
-
-            // Wire data for tiletype
-            bba.printf("label t%d_wires\n", tt.index);
-            for (NextpnrWire w : tt.wires) {
-                bba.printf("u32 %d\n", w.name); //name constid
-                bba.printf("u32 %d\n", w.pips_uh.size()); //number of uphill pips
-                bba.printf("u32 %d\n", w.pips_dh.size()); //number of downhill pips
-                bba.printf("u32 %d\n", 0); //FIXME: timing class
-                bba.printf("ref t%dw%d_uh\n", tt.index, w.index); //ref to list of uphill pips
-                bba.printf("ref t%dw%d_dh\n", tt.index, w.index); //ref to list of downhill pips
-                bba.printf("u32 %d\n",  w.belpins.size()); // number of bel pins
-                bba.printf("ref t%dw%d_bels\n", tt.index, w.index); //ref to list of bel pins
-
-                bba.printf("u16 %d\n", w.is_site ? w.site : -1); //site index or -1 if not a site wire
-                bba.printf("u16 0\n"); //padding
-                bba.printf("u32 %d\n", w.intent); //wire intent constid
-            }
-
-            // Pip data for tiletype
-            bba.printf("label t%d_pips\n", tt.index);
-            for (NextpnrPip p : tt.pips) {
-                bba.printf("u32 %d\n", p.from); //src tile wire index
-                bba.printf("u32 %d\n", p.to); //dst tile wire index
-                bba.printf("u32 %d\n", p.tmg_cls);
-                bba.printf("u16 %d\n", 0); // not used
-                bba.printf("u16 %d\n", p.type.ordinal()); // pip type/flags
-
-                bba.printf("u32 %d\n", p.bel); //bel name constid for site pips
-                bba.printf("u32 %d\n", p.extra_data); //extra data for pseudo-pips
-                bba.printf("u16 %d\n", p.site); //site index in tile for site pips
-                bba.printf("u16 %d\n", p.siteVariant); //site variant index for site pips
-            }
-
-        }
-        bba.printf("label tiletype_data\n");
-        for (NextpnrTileType tt : tileTypes) {
-            bba.printf("u32 %d\n", tt.type); //tile type name constid
-            bba.printf("u32 %d\n", tt.bels.size()); //number of bels
-            bba.printf("ref t%d_bels\n", tt.index); //ref to list of bels
-            bba.printf("u32 %d\n", tt.wires.size()); //number of wires
-            bba.printf("ref t%d_wires\n", tt.index); //ref to list of wires
-            bba.printf("u32 %d\n", tt.pips.size()); //number of pips
-            bba.printf("ref t%d_pips\n", tt.index); //ref to list of pips
-            bba.printf("u32 %d\n", -1); //FIXME: timing class
-        }
-
-        // Nodes
-        HashSet<TileTypeEnum> intTileTypes = Utils.getIntTileTypes();
-        HashSet<Long> seenNodes = new HashSet<>();
-        int curr = 0, total = d.getAllTiles().size();
-        ArrayList<Integer> nodeWireCount = new ArrayList<>(), nodeIntent = new ArrayList<>();
-
-        for (int row = 0; row < d.getRows(); row++) {
-            HashSet<Node> gndNodes = new HashSet<>(), vccNodes = new HashSet<>();
-            for (int col = 0; col < d.getColumns(); col++) {
-                Tile t = d.getTile(row, col);
-                ++curr;
-                System.out.println("Processing nodes in tile " + curr + "/" + total);
-                for (PIP p : t.getPIPs()) {
-                    Node[] nodes = {p.getStartNode(), p.getEndNode()};
-                    // FIXME: best way to discover nodes in tile?
-                    for (Node n : nodes) {
-                        long flatIndex = (long)(n.getTile().getRow() * d.getColumns() + n.getTile().getColumn()) << 32 | n.getWire();
-                        if (seenNodes.contains(flatIndex))
-                            continue;
-                        seenNodes.add(flatIndex);
-
-                        String wn = n.getWireName();
-                        //System.out.println(t.getName() + " " + n.getWireName());
-                        if ((t.getTileTypeEnum() != TileTypeEnum.BRAM_INT_INTERFACE_L && t.getTileTypeEnum() != TileTypeEnum.BRAM_INT_INTERFACE_R
-                             && t.getTileTypeEnum() != TileTypeEnum.RCLK_INT_L && t.getTileTypeEnum() != TileTypeEnum.RCLK_INT_R) &&
-                                n.isTiedToGnd()) {
-                            gndNodes.add(n);
-                            continue;
-                        }
-                        if ((t.getTileTypeEnum() != TileTypeEnum.BRAM_INT_INTERFACE_L && t.getTileTypeEnum() != TileTypeEnum.BRAM_INT_INTERFACE_R) && n.isTiedToVcc()) {
-                            vccNodes.add(n);
-                            continue;
-                        }
-                        if (n.getAllWiresInNode().length > 1) {
-                            //nn.tilewires = new NextpnrTileWireRef[n.getAllWiresInNode().length];
-                            bba.printf("label n%d_tw\n", nodeWireCount.size());
-                            // Add interconnect tiles first for better delay estimates in nextpnr
-                            for (int j = 0; j < 2; j++) {
-                                for (Wire w : n.getAllWiresInNode()) {
-                                    if (intTileTypes.contains(w.getTile().getTileTypeEnum()) != (j == 0))
-                                        continue;
-                                    int tileIndex = w.getTile().getRow() * d.getColumns() + w.getTile().getColumn();
-                                    //nn.tilewires[i] = new NextpnrTileWireRef(tileToTileInst.get(tileIndex).index, w.getWireIndex());
-
-                                    bba.printf("u32 %d\n", tileToTileInst.get(tileIndex).index); //tile inst index
-                                    bba.printf("u32 %d\n", w.getWireIndex());
+        }
 
-                                    tileToTileInst.get(tileIndex).tilewire_to_node[w.getWireIndex()] = nodeWireCount.size();
+        BBAWriter bba = output.endsWith(".bin") ? new BinaryBBAWriter(output) : new TextBBAWriter(output);
+        boolean written = false;
+        long end;
+        try {
+            metrics.begin("write_tile_types");
+            metrics.section(bba, "constids");
+
+            // Header
+            bba.pre("#include \"nextpnr.h\"");
+            bba.pre("NEXTPNR_NAMESPACE_BEGIN");
+            bba.post("NEXTPNR_NAMESPACE_END");
+            bba.push("chipdb_blob");
+            bba.offset32();
+            bba.ref("chip_info");
+
+            // Node discovery comes after this table, and takes the intent of each node's base wire, which with a
+            // region or profile can be in a tile type that was never imported
+            for (IntentCode ic : IntentCode.values())
+                makeConstId(ic.toString());
+            bba.label("extra_constid_strs");
+            for (int i = known_id_count; i < constIds.size(); i++)
+                bba.str(constIds.get(i));
+            bba.align();
+            // Constant IDs additional to constids.inc
+            bba.label("extra_constids");
+            bba.u32(known_id_count);
+            bba.u32(constIds.size() - known_id_count);
+            bba.ref("extra_constid_strs");
+            constIdLimit = constIds.size();
+
+            // Tiletypes
+            metrics.section(bba, "tile_types");
+            for (NextpnrTileType tt : tileTypes)
+                writeTileType(bba, tt);
+            bba.label("tiletype_data");
+            for (NextpnrTileType tt : tileTypes) {
+                bba.u32(tt.type); //tile type name constid
+                bba.u32(tt.data.belCount); //number of bels
+                bba.ref("t" + tt.index + "_bels"); //ref to list of bels
+                bba.u32(tt.data.wireCount); //number of wires
+                bba.ref("t" + tt.index + "_wires"); //ref to list of wires
+                bba.u32(tt.data.pipCount); //number of pips
+                bba.ref("t" + tt.index + "_pips"); //ref to list of pips
+                bba.u32(-1); //FIXME: timing class
+            }
 
-                                }
+            // Nodes
+            metrics.begin("nodes");
+            metrics.section(bba, "nodes");
+            // These are discovered in parallel bands of rows, and numbered in the order that a serial walk over all
+            // tiles would first discover them. Each band only emits the nodes that no tile in an earlier band would
+            // have discovered, so there is no need for any state shared between bands.
+            HashSet<TileTypeEnum> intTileTypes = Utils.getIntTileTypes();
+            NodeWriter nodes = new NodeWriter(bba, d.getColumns(), session.nodeTemplates, spillDir);
+            nodes.keepAnchors = session.lookaheadRange > 0;
+            nodes.bounds = session.nodeBounds;
+            IntList nodeTileWires = new IntList();
+            int bandCount = 0;
+
+            String checkpointName = part;
+            if (!region.isWholeDevice(d))
+                checkpointName += "_" + region.toString().replace(',', '_');
+            if (!session.profile.isEmpty())
+                checkpointName += "_" + session.profile.id();
+            NodeCheckpoint checkpoint = (session.checkpointDir != null)
+                    ? new NodeCheckpoint(session.checkpointDir, checkpointName, session.resume) : null;
+            AtomicInteger resumedBands = new AtomicInteger();
+            ArrayDeque<Future<NodeBand>> nodeJobs = new ArrayDeque<>();
+            int nextBandRow = region.row0, endRow = region.row1 + 1;
+            while (nextBandRow < endRow || !nodeJobs.isEmpty()) {
+                // Keep a bounded number of bands in flight, as completed bands are held until they are written out
+                while (nextBandRow < endRow && nodeJobs.size() < ((spillDir != null) ? threads + 1 : 2 * threads)) {
+                    int row0 = nextBandRow, row1 = Math.min(endRow, row0 + bandRows);
+                    nodeJobs.add(pool.submit(() -> {
+                        InternScope scope = new InternScope();
+                        currentScope.set(scope);
+                        try {
+                            byte[] entry = (checkpoint != null) ? checkpoint.get(row0, row1) : null;
+                            NodeBand band = (entry != null) ? loadNodeBand(entry, row0, row1) : null;
+                            if (band != null) {
+                                band.constIds = scope.constIds.order;
+                                resumedBands.incrementAndGet();
+                            } else {
+                                band = discoverNodes(d, intTileTypes, row0, row1);
+                                band.constIds = scope.constIds.order;
+                                if (checkpoint != null)
+                                    checkpoint.put(row0, row1, saveNodeBand(band));
                             }
-                            Wire nw = new Wire(n.getTile(), n.getWire());
-                            nodeIntent.add(makeConstId(nw.getIntentCode().toString()));
-                            nodeWireCount.add(n.getAllWiresInNode().length);
+                            return band;
+                        } finally {
+                            currentScope.remove();
                         }
-                    }
+                    }));
+                    nextBandRow = row1;
                 }
-            }
-            // Connect up row and column ground nodes
-            for (int i = 0; i < 2; i++) {
-                bba.printf("label n%d_tw\n", nodeWireCount.size());
-                int wireCount = 0;
-                for (Node n : (i == 1) ? vccNodes : gndNodes) {
-                    for (Wire w : n.getAllWiresInNode()) {
-                        int tileIndex = w.getTile().getRow() * d.getColumns() + w.getTile().getColumn();
-                        bba.printf("u32 %d\n", tileToTileInst.get(tileIndex).index);
-                        bba.printf("u32 %d\n", w.getWireIndex());
-                        tileToTileInst.get(tileIndex).tilewire_to_node[w.getWireIndex()] = nodeWireCount.size();
-                        wireCount++;
+                NodeBand band = getResult(nodeJobs.poll());
+                ++bandCount;
+                for (int i = 0; i < band.nodeIntent.size(); i++) {
+                    int node = nodes.count();
+                    nodeTileWires.clear();
+                    for (int j = band.nodeWireStart.get(i); j < band.nodeWireStart.get(i + 1); j += 2) {
+                        NextpnrTileInst ti = tileInsts.get(band.wires.get(j));
+                        int wireIndex = band.wires.get(j + 1);
+                        nodeTileWires.add(ti.index);
+                        nodeTileWires.add(wireIndex);
+                        wireToNode.set(ti.wire_base + wireIndex, node);
                     }
+                    nodes.add(nodeTileWires, band.nodeIntent.get(i));
                 }
+                progress.update(band.row1 - region.row0, endRow - region.row0, "Processed node rows");
+            }
+            if (resumedBands.get() > 0)
+                log("Resumed " + resumedBands.get() + "/" + bandCount + " node bands from checkpoint");
 
-                for (int col = 0; col < d.getColumns(); col++) {
+            // Create the global Vcc and Ground nodes
+            for (int i = 0; i < 2; i++) {
+                nodeTileWires.clear();
+                for (int row = region.row0; row <= region.row1; row++) {
+                    // The first exported tile of each row
+                    int col = region.col0;
+                    while (col <= region.col1 && !exported(d.getTile(row, col)))
+                        ++col;
+                    if (col > region.col1)
+                        continue;
                     Tile t = d.getTile(row, col);
                     int tileIndex = t.getRow() * d.getColumns() + t.getColumn();
-                    bba.printf("u32 %d\n", tileToTileInst.get(tileIndex).index);
-                    int wireIndex = (i == 1) ? tileTypes.get(tileToTileInst.get(tileIndex).type).row_vcc_wire_index : tileTypes.get(tileToTileInst.get(tileIndex).type).row_gnd_wire_index;
-                    bba.printf("u32 %d\n", wireIndex);
-                    tileToTileInst.get(tileIndex).tilewire_to_node[wireIndex] = nodeWireCount.size();
-                    wireCount++;
+                    NextpnrTileInst ti = tileInsts.get(tileIndex);
+                    nodeTileWires.add(ti.index);
+                    int wireIndex = (i == 1) ? tileTypes.get(ti.type).global_vcc_wire_index : tileTypes.get(ti.type).global_gnd_wire_index;
+                    nodeTileWires.add(wireIndex);
+                    wireToNode.set(ti.wire_base + wireIndex, nodes.count());
                 }
+                nodes.add(nodeTileWires, makeConstId(i == 1 ? "PSEUDO_VCC" : "PSEUDO_GND"));
+            }
+            metrics.count("nodes", nodes.count());
+
+            int[] classDelays = new int[pipDelays.size()];
+            for (int i = 0; i < classDelays.length; i++)
+                classDelays[i] = pipDelays.get(i);
+            NodeTileWires nodeWires = (session.lookaheadRange > 0 || session.sitePinTiming)
+                    ? new NodeTileWires(nodes.count(), tileInsts, wireToNode, spillDir) : null;
+            RouterLookahead lookahead = null;
+            if (session.lookaheadRange > 0) {
+                metrics.begin("lookahead");
+                HashSet<Integer> skipIntents = new HashSet<>();
+                skipIntents.add(makeConstId("PSEUDO_GND"));
+                skipIntents.add(makeConstId("PSEUDO_VCC"));
+                IntList samples = lookaheadSamples(d, intTileTypes, session.lookaheadSamples);
+                lookahead = new RouterLookahead(session.lookaheadRange, d.getColumns(), tileInsts, tileTypes, wireToNode,
+                        nodes, nodeWires, new PipDelayModel(classDelays, this), siteInterTiles(d));
+                lookahead.compute(pool, samples, skipIntents);
+                metrics.count("searches", lookahead.searches.get());
+                metrics.count("nodes_expanded", lookahead.expanded.get());
+                log("Computed router lookahead for " + lookahead.classCount() + " wire intents from " + samples.size()
+                        + " sample tiles");
+            }
+            SitePinTiming sitePins = null;
+            if (session.sitePinTiming) {
+                metrics.begin("site_pin_timing");
+                boolean[] intTile = new boolean[tileInsts.size()];
+                for (NextpnrTileInst ti : tileInsts) {
+                    Tile t = d.getTile(ti.index / d.getColumns(), ti.index % d.getColumns());
+                    intTile[ti.index] = exported(t) && intTileTypes.contains(t.getTileTypeEnum());
+                }
+                PipTiming tmg = session.getPipTiming(des);
+                sitePins = new SitePinTiming(tileInsts, tileTypes, wireToNode, nodeWires, classDelays, intTile,
+                        (tile, wire) -> {
+                            // The pseudo ground and Vcc wires come after the RapidWright ones, and have no delay
+                            Tile t = d.getTile(tile / d.getColumns(), tile % d.getColumns());
+                            Node n = (wire < t.getWireCount()) ? new Wire(t, wire).getNode() : null;
+                            return (n != null) ? tmg.nodeDelay(n) : 0;
+                        });
+                sitePins.compute(siteTypes, 4);
+                metrics.count("searches", sitePins.searches);
+                log("Computed interconnect distance of " + sitePins.count() + " site pins");
+            }
+            SiteReachability siteReach = null;
+            if (session.siteReach) {
+                metrics.begin("site_reach");
+                siteReach = new SiteReachability(tileTypes, siteTypes);
+                log("Computed site pin reachability of " + siteReach.variantCount() + " site variants ("
+                        + siteReach.bitsetCount() + " distinct)");
+            }
 
-                nodeWireCount.add(wireCount);
-                nodeIntent.add(makeConstId(i == 1 ? "PSEUDO_VCC" : "PSEUDO_GND"));
+            metrics.begin("write_tiles");
+            metrics.section(bba, "tile_insts");
+
+            // With shared wire to node maps, each tile's node indices are stored relative to its lowest one, and tiles
+            // with the same relative map share an array
+            HashMap<IntArrayKey, String> sharedWireToNode = new HashMap<>();
+            int[] tileNodeBase = new int[tileInsts.size()];
+            for (NextpnrTileInst ti : tileInsts) {
+                // Tilewire -> node mappings
+                if (session.sharedWireToNode) {
+                    int base = Integer.MAX_VALUE;
+                    for (int i = 0; i < ti.wire_count; i++) {
+                        int w2n = wireToNode.get(ti.wire_base + i);
+                        if (w2n != -1)
+                            base = Math.min(base, w2n);
+                    }
+                    if (base == Integer.MAX_VALUE)
+                        base = 0;
+                    int[] relative = new int[ti.wire_count];
+                    for (int i = 0; i < relative.length; i++) {
+                        int w2n = wireToNode.get(ti.wire_base + i);
+                        relative[i] = (w2n == -1) ? -1 : (w2n - base);
+                    }
+                    tileNodeBase[ti.index] = base;
+                    IntArrayKey key = new IntArrayKey(relative);
+                    ti.wire_to_node_label = sharedWireToNode.get(key);
+                    if (ti.wire_to_node_label == null) {
+                        ti.wire_to_node_label = "w2n" + sharedWireToNode.size();
+                        sharedWireToNode.put(key, ti.wire_to_node_label);
+                        bba.label(ti.wire_to_node_label);
+                        for (int w2n : relative)
+                            bba.u32(w2n);
+                    }
+                } else {
+                    ti.wire_to_node_label = "ti" + ti.index + "_wire_to_node";
+                    bba.label(ti.wire_to_node_label);
+                    for (int i = 0; i < ti.wire_count; i++)
+                        bba.u32(wireToNode.get(ti.wire_base + i));
+                }
+                bba.label("ti" + ti.index + "_sites");
+                Tile tile = d.getTile(ti.index / d.getColumns(), ti.index % d.getColumns());
+                ArrayList<NextpnrSiteInst> sites = (ti.sites != null) ? ti.sites
+                        : exported(tile) ? makeSites(tile, siteToPin) : new ArrayList<>();
+                for (NextpnrSiteInst si : sites) {
+                    bba.str(si.name);
+                    bba.str(si.packagePin);
+                    bba.u32(si.site_x); //X nominal coordinate
+                    bba.u32(si.site_y); //Y nominal coordinate
+                    bba.u32(si.rel_x); //X nominal coordinate inside tile
+                    bba.u32(si.rel_y); //Y nominal coordinate inside tile
+                    bba.u32(si.inter_x); //X intercon tile coordinate
+                    bba.u32(si.inter_y); //Y intercon coordinate
+                }
             }
-        }
-        // Create the global Vcc and Ground nodes
-        for (int i = 0; i < 2; i++) {
-            bba.printf("label n%d_tw\n", nodeWireCount.size());
-            int wireCount = 0;
-            for (int row = 0; row < d.getRows(); row++) {
-                Tile t = d.getTile(row, 0);
-                int tileIndex = t.getRow() * d.getColumns() + t.getColumn();
-                bba.printf("u32 %d\n", tileToTileInst.get(tileIndex).index);
-                int wireIndex = (i == 1) ? tileTypes.get(tileToTileInst.get(tileIndex).type).global_vcc_wire_index : tileTypes.get(tileToTileInst.get(tileIndex).type).global_gnd_wire_index;
-                bba.printf("u32 %d\n", wireIndex);
-                tileToTileInst.get(tileIndex).tilewire_to_node[wireIndex] = nodeWireCount.size();
-                wireCount++;
+            bba.label("tile_insts");
+            for (NextpnrTileInst ti : tileInsts) {
+                Tile t = d.getTile(ti.index / d.getColumns(), ti.index % d.getColumns());
+                bba.str((ti.name != null) ? ti.name : t.getName()); //tile name
+                bba.u32(ti.type); //tile type index into tiletype_data
+                bba.u32(ti.wire_count); //length of tilewire_to_node
+                bba.ref(ti.wire_to_node_label); //ref to tilewire_to_node
+                bba.u32((ti.sites != null) ? ti.sites.size() : exported(t) ? t.getSites().length : 0);
+                bba.ref("ti" + ti.index + "_sites"); //ref to list of site names
+            }
+            if (session.sharedWireToNode) {
+                bba.label("tile_node_base");
+                for (int base : tileNodeBase)
+                    bba.u32(base);
             }
 
-            nodeWireCount.add(wireCount);
-            nodeIntent.add(makeConstId(i == 1 ? "PSEUDO_VCC" : "PSEUDO_GND"));
+            metrics.section(bba, "node_tables");
+            nodes.writeTables();
+            metrics.section(bba, "timing");
+            // FIXME: Placeholder timing data
+            bba.label("tile_cell_timing");
+            // Nothing here yet
+            bba.label("wire_timing_classes");
+            bba.u32(1); // resistance
+            bba.u32(0); // capacitance
+            bba.label("pip_timing_classes");
+            for (int i = 0; i < pipDelays.size(); i++) {
+                int dly = pipDelays.get(i);
+                bba.u16(1); // is buffered
+                bba.u16(0); // padding
+                bba.u32(dly); // min delay
+                bba.u32(dly); // max delay
+                bba.u32(1); // resistance
+                bba.u32(0); // capacitance
+            }
+            bba.label("timing");
+            bba.u32(0); // number of tile types with cell timing info
+            bba.u32(1); // number of wire classes
+            bba.u32(pipDelays.size()); // number of pip classes
+            bba.ref("tile_cell_timing");
+            bba.ref("wire_timing_classes");
+            bba.ref("pip_timing_classes");
+            if (lookahead != null) {
+                metrics.section(bba, "lookahead");
+                lookahead.write(bba);
+            }
+            BelIndex belIndex = null;
+            if (session.belIndexBucket > 0) {
+                metrics.section(bba, "bel_index");
+                belIndex = new BelIndex(session.belIndexBucket, d.getColumns(), d.getRows(), tileInsts, tileTypes);
+                belIndex.write(bba);
+            }
+            int belBucketCount = 0;
+            if (session.belBuckets) {
+                metrics.section(bba, "bel_buckets");
+                belBucketCount = writeBelBuckets(bba, tileTypes, tileInsts);
+            }
+            if (sitePins != null) {
+                metrics.section(bba, "site_pin_timing");
+                sitePins.write(bba);
+            }
+            if (siteReach != null) {
+                metrics.section(bba, "site_reach");
+                siteReach.write(bba);
+            }
+            // Chip info
+            metrics.section(bba, "chip_info");
+            bba.label("chip_info");
+            bba.str(d.getDeviceName()); //device name
+            bba.str("RapidWright"); //generator
+            // Only write the extended chip info when it is needed, and only up to the version with the last section
+            // present, so that older nextpnr builds can still read the default output
+            // Each version adds one section; predictDelay needs the site types to look site pins up, so they are written
+            // with the site pin timing
+            boolean siteTypeTable = sitePins != null;
+            int version = 1;
+            if (nodes.templates || session.sharedWireToNode)
+                version = 3;
+            if (lookahead != null)
+                version = 4;
+            if (nodes.bounds)
+                version = 5;
+            if (belIndex != null)
+                version = 6;
+            if (session.belBuckets)
+                version = 7;
+            if (sitePins != null)
+                version = 8;
+            if (siteReach != null)
+                version = 9;
+            if (siteTypeTable)
+                version = 10;
+            bba.u32(version); //version
+            bba.u32(d.getColumns()); //width
+            bba.u32(d.getRows()); //height
+            bba.u32(tileInsts.size()); //number of tiles
+            bba.u32(tileTypes.size()); //number of tiletypes
+            bba.u32(nodes.count()); //number of nodes
+            bba.ref("tiletype_data"); // reference to tiletype data
+            bba.ref("tile_insts"); // reference to tile instances
+            bba.ref("nodes"); // reference to node data
+            bba.ref("extra_constids"); // reference to bel data
+            bba.u32(1); // number of speed grades
+            bba.ref("timing"); // reference to bel data
+            if (version >= 3) {
+                bba.u32((nodes.templates ? CHIP_FLAG_NODE_TEMPLATES : 0)
+                        | (session.sharedWireToNode ? CHIP_FLAG_RELATIVE_WIRE_TO_NODE : 0)
+                        | (lookahead != null ? CHIP_FLAG_LOOKAHEAD : 0)
+                        | (nodes.bounds ? CHIP_FLAG_NODE_BOUNDS : 0)
+                        | (belIndex != null ? CHIP_FLAG_BEL_INDEX : 0)
+                        | (session.belBuckets ? CHIP_FLAG_BEL_BUCKETS : 0)
+                        | (sitePins != null ? CHIP_FLAG_SITE_PIN_TIMING : 0)
+                        | (siteReach != null ? CHIP_FLAG_SITE_REACH : 0)
+                        | (siteTypeTable ? CHIP_FLAG_SITE_TYPES : 0)); // flags
+                bba.u32(nodes.templateCount()); // number of node templates
+                refOrNull(bba, nodes.templates, "node_templates"); // reference to node templates
+                refOrNull(bba, nodes.templates, "node_insts"); // reference to template and anchor tile of each node
+                refOrNull(bba, session.sharedWireToNode, "tile_node_base"); // reference to node index base of each tile
+            }
+            if (version >= 4)
+                refOrNull(bba, lookahead != null, "lookahead"); // reference to router lookahead table
+            if (version >= 5)
+                refOrNull(bba, nodes.bounds, "node_bounds"); // reference to tile span of each node
+            if (version >= 6)
+                refOrNull(bba, belIndex != null, "bel_index"); // reference to spatial index of bels by type
+            if (version >= 7) {
+                refOrNull(bba, session.belBuckets, "tiletype_buckets"); // reference to bels by type of each tile type
+                bba.u32(belBucketCount); // number of bel types in the device
+                refOrNull(bba, session.belBuckets, "bel_bucket_counts"); // reference to bel count of each type
+            }
+            if (version >= 8) {
+                bba.u32((sitePins != null) ? sitePins.count() : 0); // number of site pins
+                refOrNull(bba, sitePins != null, "site_pin_timing"); // reference to interconnect distance of site pins
+            }
+            if (version >= 9)
+                refOrNull(bba, siteReach != null, "tiletype_site_reach"); // reference to site pin reachability
+            if (version >= 10)
+                refOrNull(bba, siteTypeTable, "tiletype_site_types"); // reference to site types of each tile type
+            bba.pop();
+            end = bba.position();
+            bba.close();
+            written = true;
+            nodes.close();
+            if (nodeWires != null)
+                nodeWires.close();
+        } finally {
+            // Stop the output pipeline of a failed export, so that batch mode does not accumulate writer threads
+            if (!written)
+                bba.abort();
         }
-
-        for (NextpnrTileInst ti : tileInsts) {
-            // Tilewire -> node mappings
-            bba.printf("label ti%d_wire_to_node\n", ti.index);
-            for (int w2n : ti.tilewire_to_node)
-                bba.printf("u32 %d\n", w2n);
-            bba.printf("label ti%d_sites\n", ti.index);
-            for (NextpnrSiteInst si : ti.sites) {
-                bba.printf("str |%s|\n", si.name);
-                bba.printf("str |%s|\n", si.packagePin);
-                bba.printf("u32 %d\n", si.site_x); //X nominal coordinate
-                bba.printf("u32 %d\n", si.site_y); //Y nominal coordinate
-                bba.printf("u32 %d\n", si.rel_x); //X nominal coordinate inside tile
-                bba.printf("u32 %d\n", si.rel_y); //Y nominal coordinate inside tile
-                bba.printf("u32 %d\n", si.inter_x); //X intercon tile coordinate
-                bba.printf("u32 %d\n", si.inter_y); //Y intercon coordinate
-            }
-        }
-        bba.printf("label tile_insts\n");
-        for (NextpnrTileInst ti : tileInsts) {
-            bba.printf("str |%s|\n", ti.name); //tile name
-            bba.printf("u32 %d\n", ti.type); //tile type index into tiletype_data
-            bba.printf("u32 %d\n", ti.tilewire_to_node.length); //length of tilewire_to_node
-            bba.printf("ref ti%d_wire_to_node\n", ti.index); //ref to tilewire_to_node
-            bba.printf("u32 %d\n", ti.sites.size());
-            bba.printf("ref ti%d_sites\n", ti.index); //ref to list of site names
-        }
-
-        bba.printf("label nodes\n");
-        for (int i = 0; i < nodeWireCount.size(); i++) {
-            bba.printf("u32 %d\n", nodeWireCount.get(i)); //number of tilewires in node
-            bba.printf("u32 %d\n", nodeIntent.get(i)); //node intent constid
-            bba.printf("ref n%d_tw\n", i); //ref to list of tilewires
-        }
-        // FIXME: Placeholder timing data
-        bba.println("label tile_cell_timing");
-        // Nothing here yet
-        bba.printf("label wire_timing_classes\n");
-        bba.printf("u32 %d\n", 1); // resistance
-        bba.printf("u32 %d\n", 0); // capacitance
-        bba.printf("label pip_timing_classes\n");
-        for (int dly : pipDelays) {
-            bba.printf("u16 %d\n", 1); // is buffered
-            bba.printf("u16 %d\n", 0); // padding
-            bba.printf("u32 %d\n", dly); // min delay
-            bba.printf("u32 %d\n", dly); // max delay
-            bba.printf("u32 %d\n", 1); // resistance
-            bba.printf("u32 %d\n", 0); // capacitance
-        }
-        bba.println("label timing");
-        bba.printf("u32 %d\n", 0); // number of tile types with cell timing info
-        bba.printf("u32 %d\n", 1); // number of wire classes
-        bba.printf("u32 %d\n", pipDelays.size()); // number of pip classes
-        bba.printf("ref tile_cell_timing\n");
-        bba.printf("ref wire_timing_classes\n");
-        bba.printf("ref pip_timing_classes\n");
-        // Chip info
-        bba.println("label chip_info");
-        bba.printf("str |%s|\n", d.getDeviceName()); //device name
-        bba.printf("str |RapidWright|\n"); //generator
-        bba.printf("u32 %d\n", 1); //version
-        bba.printf("u32 %d\n", d.getColumns()); //width
-        bba.printf("u32 %d\n", d.getRows()); //height
-        bba.printf("u32 %d\n", tileInsts.size()); //number of tiles
-        bba.printf("u32 %d\n", tileTypes.size()); //number of tiletypes
-        bba.printf("u32 %d\n", nodeWireCount.size()); //number of nodes
-        bba.println("ref tiletype_data"); // reference to tiletype data
-        bba.println("ref tile_insts"); // reference to tile instances
-        bba.println("ref nodes"); // reference to node data
-        bba.println("ref extra_constids"); // reference to bel data
-        bba.printf("u32 %d\n", 1); // number of speed grades
-        bba.println("ref timing"); // reference to bel data
-        bba.println("pop");
-        bbaf.close();
+        wireToNode.close();
+        metrics.finish(end, new File(output));
     }
 }
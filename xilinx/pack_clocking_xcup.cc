@@ -86,8 +86,8 @@ void XilinxPacker::preplace_unique(CellInfo *cell)
 {
     if (cell->attrs.count(ctx->id("BEL")))
         return;
-    for (auto bel : ctx->getBels()) {
-        if (ctx->checkBelAvail(bel) && ctx->getBelType(bel) == cell->type && !used_bels.count(bel)) {
+    for (auto bel : ctx->getBelsOfType(cell->type)) {
+        if (ctx->checkBelAvail(bel) && !used_bels.count(bel)) {
             cell->attrs[ctx->id("BEL")] = std::string(ctx->nameOfBel(bel));
             used_bels.insert(bel);
             return;
@@ -274,13 +274,11 @@ void XC7Packer::pack_io()
     }
     std::queue<BelId> available_io_bels;
     IdString pad_id = ctx->xc7 ? ctx->id("PAD") : ctx->id("IOB_PAD");
-    for (auto bel : ctx->getBels()) {
+    for (auto bel : ctx->getBelsOfType(pad_id)) {
         if (int(available_io_bels.size()) >= unconstr_io_count)
             break;
         if (ctx->locInfo(bel).bel_data[bel.index].site_variant != 0)
             continue;
-        if (ctx->getBelType(bel) != pad_id)
-            continue;
         if (ctx->getBelPackagePin(bel) == ".")
             continue;
         if (used_io_bels.count(bel))
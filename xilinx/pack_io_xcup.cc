@@ -493,11 +493,9 @@ void USPacker::pack_io()
     }
     std::queue<BelId> available_io_bels;
     IdString pad_id = ctx->id("IOB_PAD");
-    for (auto bel : ctx->getBels()) {
+    for (auto bel : ctx->getBelsOfType(pad_id)) {
         if (int(available_io_bels.size()) >= unconstr_io_count)
             break;
-        if (ctx->getBelType(bel) != pad_id)
-            continue;
         if (ctx->getBelPackagePin(bel) == ".")
             continue;
         if (used_io_bels.count(bel))